@@ -26,6 +26,10 @@ public interface Calendar extends Entity {
     String getDisplayedFields();
     void setDisplayedFields(String displayedFields);
 
+    /** Maximum count of events found by one request, 0 - plugin default */
+    int getEventLimit();
+    void setEventLimit(int eventLimit);
+
     @OneToMany
     @Accessor("Share")
     Permission[] getPermissions();
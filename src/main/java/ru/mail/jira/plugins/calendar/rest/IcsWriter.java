@@ -0,0 +1,109 @@
+package ru.mail.jira.plugins.calendar.rest;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Writes an iCalendar (RFC 5545) stream event by event. Text values are escaped
+ * and content lines are folded at 75 octets while they are written.
+ */
+public class IcsWriter {
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static String CRLF = "\r\n";
+    private final static int MAX_LINE_OCTETS = 75;
+
+    private final OutputStream output;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+    private final SimpleDateFormat dateTimeFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+    private final String timestamp;
+
+    /**
+     * @param timestamp DTSTAMP of all events, a stable value keeps the output of unchanged events the same
+     */
+    public IcsWriter(OutputStream output, Date timestamp) {
+        this.output = output;
+        this.dateTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        this.timestamp = dateTimeFormat.format(timestamp);
+    }
+
+    public void startCalendar(String prodId) throws IOException {
+        writeLine("BEGIN:VCALENDAR");
+        writeLine("PRODID:" + escape(prodId));
+        writeLine("VERSION:2.0");
+        writeLine("CALSCALE:GREGORIAN");
+    }
+
+    /**
+     * @param allDay all day events are written as dates in the server time zone, others as UTC date-times
+     */
+    public void writeEvent(String uid, String summary, Date start, @Nullable Date end, boolean allDay,
+                           String url, @Nullable String description) throws IOException {
+        writeLine("BEGIN:VEVENT");
+        writeLine("DTSTAMP:" + timestamp);
+        writeLine(formatDate("DTSTART", start, allDay));
+        if (end != null)
+            writeLine(formatDate("DTEND", end, allDay));
+        writeLine("SUMMARY:" + escape(summary));
+        writeLine("UID:" + escape(uid));
+        writeLine("URL:" + url);
+        if (description != null)
+            writeLine("DESCRIPTION:" + escape(description));
+        writeLine("END:VEVENT");
+    }
+
+    public void endCalendar() throws IOException {
+        writeLine("END:VCALENDAR");
+        output.flush();
+    }
+
+    private String formatDate(String name, Date date, boolean allDay) {
+        return allDay ? name + ";VALUE=DATE:" + dateFormat.format(date) : name + ":" + dateTimeFormat.format(date);
+    }
+
+    private void writeLine(String line) throws IOException {
+        StringBuilder folded = new StringBuilder(line.length() + CRLF.length());
+        int lineOctets = 0;
+        for (int i = 0; i < line.length(); ) {
+            int codePoint = line.codePointAt(i);
+            int octets = codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            if (lineOctets + octets > MAX_LINE_OCTETS) {
+                folded.append(CRLF).append(' ');
+                lineOctets = 1;
+            }
+            folded.appendCodePoint(codePoint);
+            lineOctets += octets;
+            i += Character.charCount(codePoint);
+        }
+        folded.append(CRLF);
+        output.write(folded.toString().getBytes(UTF_8));
+    }
+
+    private static String escape(@Nullable String value) {
+        if (value == null)
+            return "";
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                case ';':
+                case ',':
+                    result.append('\\').append(c);
+                    break;
+                case '\n':
+                    result.append("\\n");
+                    break;
+                case '\r':
+                    break;
+                default:
+                    result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
@@ -1,16 +1,25 @@
 package ru.mail.jira.plugins.calendar.rest;
 
 import com.atlassian.jira.bc.issue.IssueService;
+import com.atlassian.jira.datetime.DateTimeFormatter;
+import com.atlassian.jira.datetime.DateTimeStyle;
 import com.atlassian.jira.issue.MutableIssue;
 import com.atlassian.jira.security.JiraAuthenticationContext;
 import com.atlassian.jira.user.ApplicationUser;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.xc.JaxbAnnotationIntrospector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.jira.plugins.calendar.model.Calendar;
 import ru.mail.jira.plugins.calendar.rest.dto.Event;
+import ru.mail.jira.plugins.calendar.rest.dto.EventsDto;
 import ru.mail.jira.plugins.calendar.rest.dto.IssueInfo;
 import ru.mail.jira.plugins.calendar.service.CalendarEventService;
 import ru.mail.jira.plugins.calendar.service.CalendarService;
+import ru.mail.jira.plugins.calendar.service.EventHandler;
 import ru.mail.jira.plugins.commons.RestExecutor;
 
 import javax.ws.rs.GET;
@@ -19,28 +28,46 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @Path("/calendar/events")
 @Produces(MediaType.APPLICATION_JSON)
 public class RestCalendarEventService {
     private final static Logger log = LoggerFactory.getLogger(RestCalendarEventService.class);
 
+    private final static String TRUNCATED_HEADER = "X-Mailrucalendar-Events-Truncated";
+    private final static ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    static {
+        OBJECT_MAPPER.setAnnotationIntrospector(new JaxbAnnotationIntrospector());
+        OBJECT_MAPPER.configure(SerializationConfig.Feature.FLUSH_AFTER_WRITE_VALUE, false);
+    }
+
     private final CalendarService calendarService;
     private final CalendarEventService calendarEventService;
 
+    private final DateTimeFormatter dateTimeFormatter;
     private final IssueService issueService;
     private final JiraAuthenticationContext jiraAuthenticationContext;
 
     public RestCalendarEventService(CalendarService calendarService,
                                     CalendarEventService calendarEventService,
+                                    DateTimeFormatter dateTimeFormatter,
                                     IssueService issueService,
                                     JiraAuthenticationContext jiraAuthenticationContext) {
         this.calendarService = calendarService;
         this.calendarEventService = calendarEventService;
+        this.dateTimeFormatter = dateTimeFormatter;
         this.issueService = issueService;
         this.jiraAuthenticationContext = jiraAuthenticationContext;
     }
@@ -57,15 +84,113 @@ public class RestCalendarEventService {
         }.getResponse();
     }
 
+    /**
+     * Infos of many events of the calendar at once, so a client can prefetch them for the shown events.
+     * The calendar and timeline views still request the info of each event on hover.
+     */
+    @GET
+    @Path("{calendarId}/info")
+    public Response getEventInfos(@PathParam("calendarId") final int calendarId,
+                                  @QueryParam("eventId") final List<String> eventIds) {
+        return new RestExecutor<Map<String, IssueInfo>>() {
+            @Override
+            protected Map<String, IssueInfo> doAction() throws Exception {
+                return calendarEventService.getEventInfos(jiraAuthenticationContext.getUser(), calendarId, eventIds);
+            }
+        }.getResponse();
+    }
+
+    /**
+     * Events of the calendar as a JSON array, the {@link #TRUNCATED_HEADER} header tells whether the events limit was hit.
+     * With {@code stream=true} events are written while they are found as {@code {"events": [...], "truncated": false}},
+     * the flag follows the events as headers are sent before them. The calendar view does not stream events yet.
+     */
     @GET
     @Path("{calendarId}")
     public Response getEvents(@PathParam("calendarId") final int calendarId,
+                              @QueryParam("start") final String start,
+                              @QueryParam("end") final String end,
+                              @QueryParam("stream") final boolean stream) {
+        try {
+            if (log.isDebugEnabled())
+                log.debug("getEvents with params. calendarId={}, start={}, end={}, stream={}", new Object[]{calendarId, start, end, stream});
+            CacheControl cacheControl = new CacheControl();
+            cacheControl.setNoCache(true);
+            cacheControl.setNoStore(true);
+            cacheControl.setMaxAge(0);
+            if (stream)
+                return Response.ok(streamEvents(calendarId, start, end, jiraAuthenticationContext.getUser())).cacheControl(cacheControl).build();
+            EventsDto result = calendarEventService.findEvents(calendarId, start, end, jiraAuthenticationContext.getUser());
+            return Response.ok(formatDates(result.getEvents(), jiraAuthenticationContext.getUser())).header(TRUNCATED_HEADER, result.isTruncated()).cacheControl(cacheControl).build();
+        } catch (Exception e) {
+            log.error("Error while trying to get events", e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
+        }
+    }
+
+    /**
+     * Writes events into the response while the issues are being found
+     * so that the whole list is never held in memory.
+     */
+    private StreamingOutput streamEvents(final int calendarId, final String start, final String end, final ApplicationUser user) {
+        return new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException, WebApplicationException {
+                final DateTimeFormatter userDateFormat = dateTimeFormatter.forUser(user).withStyle(DateTimeStyle.ISO_8601_DATE);
+                final DateTimeFormatter userDateTimeFormat = dateTimeFormatter.forUser(user).withStyle(DateTimeStyle.ISO_8601_DATE_TIME);
+                final JsonGenerator generator = OBJECT_MAPPER.getJsonFactory().createJsonGenerator(output, JsonEncoding.UTF8);
+                generator.writeStartObject();
+                generator.writeArrayFieldStart("events");
+                boolean truncated;
+                try {
+                    truncated = calendarEventService.findEvents(calendarId, start, end, user, new EventHandler() {
+                        @Override
+                        public void handle(Event event) throws IOException {
+                            OBJECT_MAPPER.writeValue(generator, event.formatDates(userDateFormat, userDateTimeFormat));
+                        }
+                    });
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    log.error("Error while trying to stream events", e);
+                    throw new WebApplicationException(e);
+                }
+                generator.writeEndArray();
+                generator.writeBooleanField("truncated", truncated);
+                generator.writeEndObject();
+                generator.close();
+            }
+        };
+    }
+
+    /**
+     * Events keep raw dates, they are formatted for the user only here before being written as JSON.
+     * Found events may be cached and shared by requests, so they are left as they are and copies are returned.
+     */
+    private List<Event> formatDates(List<Event> events, ApplicationUser user) {
+        DateTimeFormatter userDateFormat = dateTimeFormatter.forUser(user).withStyle(DateTimeStyle.ISO_8601_DATE);
+        DateTimeFormatter userDateTimeFormat = dateTimeFormatter.forUser(user).withStyle(DateTimeStyle.ISO_8601_DATE_TIME);
+        List<Event> result = new ArrayList<Event>(events.size());
+        for (Event event : events)
+            result.add(event.formatDates(userDateFormat, userDateTimeFormat));
+        return result;
+    }
+
+    /**
+     * Events of several calendars with one request as events with the truncated flag by calendar ids. The calendar view
+     * still requests each calendar on its own, this endpoint has no caller in the plugin yet.
+     */
+    @GET
+    @Path("batch")
+    public Response getEvents(@QueryParam("calendarId") final List<Integer> calendarIds,
                               @QueryParam("start") final String start,
                               @QueryParam("end") final String end) {
         try {
             if (log.isDebugEnabled())
-                log.debug("getEvents with params. calendarId={}, start={}, end={}", new Object[]{calendarId, start, end});
-            List<Event> result = calendarEventService.findEvents(calendarId, start, end, jiraAuthenticationContext.getUser());
+                log.debug("getEvents with params. calendarIds={}, start={}, end={}", new Object[]{calendarIds, start, end});
+            Map<Integer, EventsDto> result = new LinkedHashMap<Integer, EventsDto>();
+            for (Map.Entry<Integer, EventsDto> entry : calendarEventService.findEvents(calendarIds, start, end, jiraAuthenticationContext.getUser()).entrySet())
+                result.put(entry.getKey(), new EventsDto(formatDates(entry.getValue().getEvents(), jiraAuthenticationContext.getUser()), entry.getValue().isTruncated()));
             CacheControl cacheControl = new CacheControl();
             cacheControl.setNoCache(true);
             cacheControl.setNoStore(true);
@@ -2,35 +2,30 @@ package ru.mail.jira.plugins.calendar.rest;
 
 import com.atlassian.jira.component.ComponentAccessor;
 import com.atlassian.jira.config.properties.APKeys;
-import com.atlassian.jira.datetime.DateTimeFormatter;
-import com.atlassian.jira.datetime.DateTimeStyle;
 import com.atlassian.jira.security.JiraAuthenticationContext;
 import com.atlassian.jira.user.ApplicationUser;
 import com.atlassian.jira.user.util.UserManager;
 import com.atlassian.jira.util.I18nHelper;
 import com.atlassian.plugins.rest.common.security.AnonymousAllowed;
-import net.fortuna.ical4j.data.CalendarOutputter;
-import net.fortuna.ical4j.model.DateTime;
-import net.fortuna.ical4j.model.ValidationException;
-import net.fortuna.ical4j.model.component.VEvent;
-import net.fortuna.ical4j.model.property.CalScale;
-import net.fortuna.ical4j.model.property.Description;
-import net.fortuna.ical4j.model.property.ProdId;
-import net.fortuna.ical4j.model.property.Uid;
-import net.fortuna.ical4j.model.property.Url;
-import net.fortuna.ical4j.model.property.Version;
-import net.fortuna.ical4j.util.Uris;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.mail.jira.plugins.calendar.model.UserData;
 import ru.mail.jira.plugins.calendar.rest.dto.CalendarDto;
 import ru.mail.jira.plugins.calendar.rest.dto.CalendarSettingDto;
 import ru.mail.jira.plugins.calendar.rest.dto.Event;
+import ru.mail.jira.plugins.calendar.service.CalendarEventCache;
 import ru.mail.jira.plugins.calendar.service.CalendarEventService;
+import ru.mail.jira.plugins.calendar.service.CalendarIssueListener;
 import ru.mail.jira.plugins.calendar.service.CalendarService;
+import ru.mail.jira.plugins.calendar.service.EventHandler;
+import ru.mail.jira.plugins.calendar.service.PluginSettingsService;
+import ru.mail.jira.plugins.calendar.service.UserCalendarService;
 import ru.mail.jira.plugins.calendar.service.UserDataService;
 import ru.mail.jira.plugins.commons.RestExecutor;
 
+import javax.annotation.Nullable;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -38,38 +33,63 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 
 @Path("/calendar")
 @Produces(MediaType.APPLICATION_JSON)
 public class RestCalendarService {
+    private final static Logger log = LoggerFactory.getLogger(RestCalendarService.class);
+
+    private final static int MAX_CACHED_FEED_BYTES = 4 * 1024 * 1024;
+
     private final CalendarService calendarService;
+    private final CalendarEventCache calendarEventCache;
     private final CalendarEventService calendarEventService;
+    private final CalendarIssueListener calendarIssueListener;
+    private final UserCalendarService userCalendarService;
 
-    private final DateTimeFormatter dateTimeFormatter;
     private final I18nHelper i18nHelper;
     private final JiraAuthenticationContext jiraAuthenticationContext;
+    private final PluginSettingsService pluginSettingsService;
     private final UserDataService userDataService;
     private final UserManager userManager;
 
 
     public RestCalendarService(CalendarService calendarService,
+                               CalendarEventCache calendarEventCache,
                                CalendarEventService calendarEventService,
-                               DateTimeFormatter dateTimeFormatter,
+                               CalendarIssueListener calendarIssueListener,
                                I18nHelper i18nHelper,
                                JiraAuthenticationContext jiraAuthenticationContext,
+                               PluginSettingsService pluginSettingsService,
+                               UserCalendarService userCalendarService,
                                UserDataService userDataService, UserManager userManager) {
         this.calendarService = calendarService;
+        this.calendarEventCache = calendarEventCache;
         this.calendarEventService = calendarEventService;
-        this.dateTimeFormatter = dateTimeFormatter;
+        this.calendarIssueListener = calendarIssueListener;
         this.i18nHelper = i18nHelper;
         this.jiraAuthenticationContext = jiraAuthenticationContext;
+        this.pluginSettingsService = pluginSettingsService;
+        this.userCalendarService = userCalendarService;
         this.userDataService = userDataService;
         this.userManager = userManager;
     }
@@ -79,7 +99,9 @@ public class RestCalendarService {
         return new RestExecutor<CalendarDto>() {
             @Override
             protected CalendarDto doAction() throws Exception {
-                return calendarService.createCalendar(jiraAuthenticationContext.getUser(), calendarSettingDto);
+                CalendarDto result = calendarService.createCalendar(jiraAuthenticationContext.getUser(), calendarSettingDto);
+                calendarIssueListener.invalidate();
+                return result;
             }
         }.getResponse();
     }
@@ -101,7 +123,9 @@ public class RestCalendarService {
         return new RestExecutor<CalendarDto>() {
             @Override
             protected CalendarDto doAction() throws Exception {
-                return calendarService.updateCalendar(jiraAuthenticationContext.getUser(), calendarSettingDto);
+                CalendarDto result = calendarService.updateCalendar(jiraAuthenticationContext.getUser(), calendarSettingDto);
+                invalidateCalendar(calendarSettingDto.getId());
+                return result;
             }
         }.getResponse();
     }
@@ -113,6 +137,7 @@ public class RestCalendarService {
             @Override
             protected Void doAction() throws Exception {
                 calendarService.deleteCalendar(jiraAuthenticationContext.getUser(), id);
+                invalidateCalendar(id);
                 return null;
             }
         }.getResponse();
@@ -137,69 +162,186 @@ public class RestCalendarService {
             @Override
             protected Void doAction() throws Exception {
                 calendarService.updateCalendarVisibility(calendarId, jiraAuthenticationContext.getUser(), visible);
+                userCalendarService.invalidateUsersCount(calendarId);
                 return null;
             }
         }.getResponse();
     }
 
+    /**
+     * Feeds are rendered once and kept in {@link CalendarEventCache} until events of their calendars change,
+     * subscribers revalidating a cached feed get 304 from its ETag without any search. Otherwise the ETag is computed
+     * before the feed is streamed, see {@link CalendarEventService#getEventsVersion}. Last-Modified is not sent,
+     * issues leaving the feed or calendar changes have no time to send.
+     * The window in months and the events limit default to the plugin settings and are clamped to their maximums.
+     */
     @GET
     @Produces("text/calendar")
     @Path("{icalUid}/{calendars}.ics")
     @AnonymousAllowed
     public Response getIcsCalendar(@PathParam("icalUid") final String icalUid,
-                                   @PathParam("calendars") final String calendars) {
-        return new RestExecutor<StreamingOutput>() {
+                                   @PathParam("calendars") final String calendars,
+                                   @QueryParam("monthsBefore") final Integer monthsBefore,
+                                   @QueryParam("monthsAfter") final Integer monthsAfter,
+                                   @QueryParam("limit") final Integer limit,
+                                   @Context Request request) {
+        try {
+            UserData userData = userDataService.getUserDataByIcalUid(icalUid);
+            if (userData == null)
+                return Response.noContent().build();
+            ApplicationUser user = userManager.getUserByKey(userData.getUserKey());
+            if (user == null || !user.isActive())
+                return Response.noContent().build();
+
+            int maxMonths = pluginSettingsService.getMaxIcsMonths();
+            int before = Math.min(monthsBefore != null && monthsBefore >= 0 ? monthsBefore : pluginSettingsService.getIcsMonthsBefore(), maxMonths);
+            int after = Math.min(monthsAfter != null && monthsAfter >= 0 ? monthsAfter : pluginSettingsService.getIcsMonthsAfter(), maxMonths);
+            int eventLimit = Math.min(limit != null && limit > 0 ? limit : pluginSettingsService.getIcsEventLimit(), pluginSettingsService.getMaxIcsEventLimit());
+
+            List<Integer> calendarIds = new ArrayList<Integer>();
+            for (String calendarId : StringUtils.split(calendars, "-"))
+                calendarIds.add(Integer.parseInt(calendarId));
+            LocalDate today = LocalDate.now();
+            String start = today.minusMonths(before).toString("yyyy-MM-dd");
+            String end = today.plusMonths(after).toString("yyyy-MM-dd");
+
+            String feedKey = calendars + "?" + before + "-" + after + "-" + eventLimit;
+            CalendarEventCache.Feed feed = calendarEventCache.getFeed(icalUid, feedKey, calendarIds);
+            String etag;
+            if (feed != null)
+                etag = feed.getEtag();
+            else {
+                String eventsVersion = calendarEventService.getEventsVersion(calendarIds, start, end, user);
+                // The feed is stamped with the start of the day, so it changes daily as well
+                etag = md5Hex((eventsVersion + "|" + feedKey + "|" + today + "|" + user.getKey()).getBytes("UTF-8"));
+            }
+
+            EntityTag entityTag = new EntityTag(etag);
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(entityTag);
+            if (notModified != null)
+                return notModified.tag(entityTag).build();
+            Response.ResponseBuilder response = feed != null
+                    ? Response.ok(feed.getContent())
+                    : Response.ok(streamIcsFeed(icalUid, calendarIds, feedKey, start, end, today, eventLimit, user, etag));
+            return response.tag(entityTag).build();
+        } catch (Exception e) {
+            log.error("Error while trying to get ics calendar", e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
+        }
+    }
+
+    /**
+     * Writes events into the response while they are found. The written bytes are kept for the feed cache
+     * with the ETag sent in the response unless the feed grows over {@link #MAX_CACHED_FEED_BYTES}.
+     * The ETag is sent before the events are found, so a feed missing events of a failed calendar is cut off
+     * before its end and is not cached, subscribers do not keep it under the ETag of the complete feed.
+     */
+    private StreamingOutput streamIcsFeed(final String icalUid, final List<Integer> calendarIds, final String feedKey,
+                                          final String start, final String end, final LocalDate today, final int eventLimit,
+                                          final ApplicationUser user, final String etag) {
+        return new StreamingOutput() {
             @Override
-            protected StreamingOutput doAction() throws Exception {
-                String[] calendarIds = StringUtils.split(calendars, "-");
-
-                UserData userData = userDataService.getUserDataByIcalUid(icalUid);
-                if (userData == null)
-                    return null;
-                ApplicationUser user = userManager.getUserByKey(userData.getUserKey());
-                if (user == null || !user.isActive())
-                    return null;
-
-                DateTimeFormatter userDateTimeFormat = dateTimeFormatter.forUser(user).withStyle(DateTimeStyle.ISO_8601_DATE_TIME);
-                final net.fortuna.ical4j.model.Calendar calendar = new net.fortuna.ical4j.model.Calendar();
-                calendar.getProperties().add(new ProdId("-//MailRu Calendar/" + icalUid + "/iCal4j 1.0//EN"));
-                calendar.getProperties().add(Version.VERSION_2_0);
-                calendar.getProperties().add(CalScale.GREGORIAN);
-
-                LocalDate startSearch = LocalDate.now().minusMonths(3);
-                LocalDate endSearch = LocalDate.now().plusMonths(1);
-
-                for (String calendarId : calendarIds) {
-                    List<Event> events = calendarEventService.findEvents(Integer.parseInt(calendarId),
-                                                                         startSearch.toString("yyyy-MM-dd"),
-                                                                         endSearch.toString("yyyy-MM-dd"),
-                                                                         userManager.getUserByKey(userData.getUserKey()),
-                                                                         true);
-
-                    for (Event event : events) {
-                        DateTime start = new DateTime(userDateTimeFormat.parse(event.getStart()));
-                        DateTime end = event.getEnd() != null ? new DateTime(userDateTimeFormat.parse(event.getEnd())) : null;
-
-                        VEvent vEvent = end != null ? new VEvent(start, end, event.getTitle()) : new VEvent(start, event.getTitle());
-                        vEvent.getProperties().add(new Uid(calendarId + "_" + event.getId()));
-                        vEvent.getProperties().add(new Url(Uris.create(ComponentAccessor.getApplicationProperties().getString(APKeys.JIRA_BASEURL) + "/browse/" + event.getId())));
-                        if (event.getIssueInfo() != null)
-                            vEvent.getProperties().add(new Description(event.getIssueInfo().toFormatString(i18nHelper)));
-                        calendar.getComponents().add(vEvent);
-                    }
-                }
+            public void write(OutputStream output) throws IOException, WebApplicationException {
+                FeedOutputStream feedOutput = new FeedOutputStream(output);
+                // The feed window moves daily, so the start of the day keeps the feed content stable until events change
+                final IcsWriter icsWriter = new IcsWriter(feedOutput, today.toDate());
+                final String baseUrl = ComponentAccessor.getApplicationProperties().getString(APKeys.JIRA_BASEURL);
+                String changeToken = calendarEventCache.getChangeToken(calendarIds);
+
+                icsWriter.startCalendar("-//MailRu Calendar/" + icalUid + "/EN");
+                CalendarEventService.StreamResult result;
+                try {
+                    result = calendarEventService.findEvents(calendarIds, start, end, user, true, true, eventLimit, new EventHandler() {
+                        private int written;
 
-                return new StreamingOutput() {
-                    @Override
-                    public void write(OutputStream output) throws IOException, WebApplicationException {
-                        try {
-                            new CalendarOutputter().output(calendar, output);
-                        } catch (ValidationException e) {
-                            throw new IOException(e);
+                        @Override
+                        public void handle(Event event) throws IOException {
+                            // Each calendar is limited by the search, the feed as a whole is limited here
+                            if (written >= eventLimit)
+                                return;
+                            written++;
+                            icsWriter.writeEvent(event.getCalendarId() + "_" + event.getId(),
+                                                 event.getTitle(),
+                                                 new Date(event.getStartTime()),
+                                                 event.getEndTime() != null ? new Date(event.getEndTime()) : null,
+                                                 event.isAllDay(),
+                                                 baseUrl + "/browse/" + event.getId(),
+                                                 event.getIssueInfo() != null ? event.getIssueInfo().toFormatString(i18nHelper) : null);
                         }
-                    }
-                };
+                    });
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    log.error("Error while trying to stream ics calendar", e);
+                    throw new WebApplicationException(e);
+                }
+                if (!result.getFailedCalendarIds().isEmpty()) {
+                    log.error("Ics calendar {} is cut off, events of calendars {} could not be found", icalUid, result.getFailedCalendarIds());
+                    throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+                }
+                icsWriter.endCalendar();
+
+                byte[] content = feedOutput.getContent();
+                if (content != null)
+                    calendarEventCache.putFeed(icalUid, feedKey, new CalendarEventCache.Feed(content, etag, new HashSet<Integer>(calendarIds), changeToken));
             }
-        }.getResponse();
+        };
+    }
+
+    /**
+     * Drops cached state of the calendar once its transaction is committed, a search running in between
+     * would cache the old state again otherwise
+     */
+    private void invalidateCalendar(int calendarId) {
+        calendarEventCache.invalidateCalendar(calendarId);
+        calendarIssueListener.invalidate();
+        userCalendarService.invalidateUsersCount(calendarId);
+    }
+
+    private static String md5Hex(byte[] bytes) {
+        try {
+            return String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(bytes)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies the written bytes until their size exceeds {@link #MAX_CACHED_FEED_BYTES}
+     */
+    private static final class FeedOutputStream extends FilterOutputStream {
+        private ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        private FeedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (content != null) {
+                content.write(b);
+                checkSize();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (content != null) {
+                content.write(b, off, len);
+                checkSize();
+            }
+        }
+
+        private void checkSize() {
+            if (content.size() > MAX_CACHED_FEED_BYTES)
+                content = null;
+        }
+
+        @Nullable
+        private byte[] getContent() {
+            return content != null ? content.toByteArray() : null;
+        }
     }
 }
@@ -14,12 +14,9 @@ import com.atlassian.jira.issue.fields.CustomField;
 import com.atlassian.jira.issue.search.SearchRequest;
 import com.atlassian.jira.permission.GlobalPermissionKey;
 import com.atlassian.jira.project.Project;
-import com.atlassian.jira.project.ProjectManager;
 import com.atlassian.jira.security.GlobalPermissionManager;
 import com.atlassian.jira.security.JiraAuthenticationContext;
 import com.atlassian.jira.security.groups.GroupManager;
-import com.atlassian.jira.security.roles.ProjectRole;
-import com.atlassian.jira.security.roles.ProjectRoleManager;
 import com.atlassian.jira.sharing.SharedEntityColumn;
 import com.atlassian.jira.sharing.search.SharedEntitySearchContext;
 import com.atlassian.jira.sharing.search.SharedEntitySearchParameters;
@@ -33,13 +30,20 @@ import ru.mail.jira.plugins.calendar.rest.dto.DateField;
 import ru.mail.jira.plugins.calendar.rest.dto.IssueSourceDto;
 import ru.mail.jira.plugins.calendar.rest.dto.PermissionItemDto;
 import ru.mail.jira.plugins.calendar.rest.dto.PermissionSubjectDto;
+import ru.mail.jira.plugins.calendar.rest.dto.PluginSettingsDto;
 import ru.mail.jira.plugins.calendar.rest.dto.SelectItemDto;
+import ru.mail.jira.plugins.calendar.service.CalendarEventCache;
+import ru.mail.jira.plugins.calendar.service.CalendarEventIndex;
 import ru.mail.jira.plugins.calendar.service.CalendarEventService;
 import ru.mail.jira.plugins.calendar.service.CalendarServiceImpl;
+import ru.mail.jira.plugins.calendar.service.PermissionSubjectIndex;
 import ru.mail.jira.plugins.calendar.service.PermissionUtils;
+import ru.mail.jira.plugins.calendar.service.PluginSettingsService;
 import ru.mail.jira.plugins.commons.RestExecutor;
+import ru.mail.jira.plugins.commons.RestFieldException;
 
 import javax.ws.rs.GET;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
@@ -59,33 +63,36 @@ import java.util.Map;
 public class RestConfigurationService {
     private final ApplicationProperties applicationProperties;
     private final AvatarService avatarService;
+    private final CalendarEventCache calendarEventCache;
+    private final CalendarEventIndex calendarEventIndex;
     private final CustomFieldManager customFieldManager;
     private final GlobalPermissionManager globalPermissionManager;
     private final GroupManager groupManager;
     private final I18nHelper i18nHelper;
     private final JiraAuthenticationContext jiraAuthenticationContext;
-    private final ProjectManager projectManager;
+    private final PermissionSubjectIndex permissionSubjectIndex;
+    private final PluginSettingsService pluginSettingsService;
     private final ProjectService projectService;
-    private final ProjectRoleManager projectRoleManager;
     private final SearchRequestService searchRequestService;
     private final SearchService searchService;
     private final UserManager userManager;
 
-    public RestConfigurationService(ApplicationProperties applicationProperties, AvatarService avatarService, CustomFieldManager customFieldManager,
+    public RestConfigurationService(ApplicationProperties applicationProperties, AvatarService avatarService, CalendarEventCache calendarEventCache, CalendarEventIndex calendarEventIndex, CustomFieldManager customFieldManager,
                                     GlobalPermissionManager globalPermissionManager, GroupManager groupManager, I18nHelper i18nHelper,
-                                    JiraAuthenticationContext jiraAuthenticationContext,
-                                    ProjectManager projectManager, ProjectService projectService,
-                                    ProjectRoleManager projectRoleManager, SearchRequestService searchRequestService, SearchService searchService, UserManager userManager) {
+                                    JiraAuthenticationContext jiraAuthenticationContext, PermissionSubjectIndex permissionSubjectIndex, PluginSettingsService pluginSettingsService,
+                                    ProjectService projectService, SearchRequestService searchRequestService, SearchService searchService, UserManager userManager) {
         this.applicationProperties = applicationProperties;
         this.avatarService = avatarService;
+        this.calendarEventCache = calendarEventCache;
+        this.calendarEventIndex = calendarEventIndex;
         this.customFieldManager = customFieldManager;
         this.globalPermissionManager = globalPermissionManager;
         this.groupManager = groupManager;
         this.i18nHelper = i18nHelper;
         this.jiraAuthenticationContext = jiraAuthenticationContext;
-        this.projectManager = projectManager;
+        this.permissionSubjectIndex = permissionSubjectIndex;
+        this.pluginSettingsService = pluginSettingsService;
         this.projectService = projectService;
-        this.projectRoleManager = projectRoleManager;
         this.searchRequestService = searchRequestService;
         this.searchService = searchService;
         this.userManager = userManager;
@@ -104,6 +111,85 @@ public class RestConfigurationService {
         }.getResponse();
     }
 
+    @GET
+    @Path("/settings")
+    public Response getPluginSettings() {
+        return new RestExecutor<PluginSettingsDto>() {
+            @Override
+            protected PluginSettingsDto doAction() throws Exception {
+                if (!isAdministrator(jiraAuthenticationContext.getUser()))
+                    throw new SecurityException("No permission to view plugin settings");
+                PluginSettingsDto result = new PluginSettingsDto();
+                result.setEventLimit(pluginSettingsService.getEventLimit());
+                result.setMaxEventLimit(pluginSettingsService.getMaxEventLimit());
+                result.setSearchThreads(pluginSettingsService.getSearchThreads());
+                result.setIcsMonthsBefore(pluginSettingsService.getIcsMonthsBefore());
+                result.setIcsMonthsAfter(pluginSettingsService.getIcsMonthsAfter());
+                result.setMaxIcsMonths(pluginSettingsService.getMaxIcsMonths());
+                result.setIcsEventLimit(pluginSettingsService.getIcsEventLimit());
+                result.setMaxIcsEventLimit(pluginSettingsService.getMaxIcsEventLimit());
+                result.setEventIndexSize(pluginSettingsService.getEventIndexSize());
+                return result;
+            }
+        }.getResponse();
+    }
+
+    @PUT
+    @Path("/settings")
+    public Response updatePluginSettings(final PluginSettingsDto pluginSettingsDto) {
+        return new RestExecutor<Void>() {
+            @Override
+            protected Void doAction() throws Exception {
+                if (!isAdministrator(jiraAuthenticationContext.getUser()))
+                    throw new SecurityException("No permission to edit plugin settings");
+                Integer eventLimit = pluginSettingsDto.getEventLimit();
+                Integer maxEventLimit = pluginSettingsDto.getMaxEventLimit();
+                if (maxEventLimit == null || maxEventLimit <= 0)
+                    throw new RestFieldException(i18nHelper.getText("ru.mail.jira.plugins.calendar.settings.positiveNumber"), "max-event-limit");
+                if (eventLimit == null || eventLimit <= 0 || eventLimit > maxEventLimit)
+                    throw new RestFieldException(i18nHelper.getText("ru.mail.jira.plugins.calendar.dialog.eventLimit.error", String.valueOf(maxEventLimit)), "event-limit");
+                Integer searchThreads = pluginSettingsDto.getSearchThreads();
+                if (searchThreads != null && (searchThreads <= 0 || searchThreads > PluginSettingsService.MAX_SEARCH_THREADS))
+                    throw new RestFieldException(i18nHelper.getText("ru.mail.jira.plugins.calendar.settings.searchThreads.error", String.valueOf(PluginSettingsService.MAX_SEARCH_THREADS)), "search-threads");
+
+                // ICS feed settings are optional, missing values keep the current ones
+                int maxIcsMonths = pluginSettingsDto.getMaxIcsMonths() != null ? pluginSettingsDto.getMaxIcsMonths() : pluginSettingsService.getMaxIcsMonths();
+                int icsMonthsBefore = pluginSettingsDto.getIcsMonthsBefore() != null ? pluginSettingsDto.getIcsMonthsBefore() : pluginSettingsService.getIcsMonthsBefore();
+                int icsMonthsAfter = pluginSettingsDto.getIcsMonthsAfter() != null ? pluginSettingsDto.getIcsMonthsAfter() : pluginSettingsService.getIcsMonthsAfter();
+                int maxIcsEventLimit = pluginSettingsDto.getMaxIcsEventLimit() != null ? pluginSettingsDto.getMaxIcsEventLimit() : pluginSettingsService.getMaxIcsEventLimit();
+                int icsEventLimit = pluginSettingsDto.getIcsEventLimit() != null ? pluginSettingsDto.getIcsEventLimit() : pluginSettingsService.getIcsEventLimit();
+                if (maxIcsMonths <= 0)
+                    throw new RestFieldException(i18nHelper.getText("ru.mail.jira.plugins.calendar.settings.positiveNumber"), "max-ics-months");
+                if (icsMonthsBefore < 0 || icsMonthsBefore > maxIcsMonths)
+                    throw new RestFieldException(i18nHelper.getText("ru.mail.jira.plugins.calendar.settings.icsMonths.error", String.valueOf(maxIcsMonths)), "ics-months-before");
+                if (icsMonthsAfter < 0 || icsMonthsAfter > maxIcsMonths)
+                    throw new RestFieldException(i18nHelper.getText("ru.mail.jira.plugins.calendar.settings.icsMonths.error", String.valueOf(maxIcsMonths)), "ics-months-after");
+                if (maxIcsEventLimit <= 0)
+                    throw new RestFieldException(i18nHelper.getText("ru.mail.jira.plugins.calendar.settings.positiveNumber"), "max-ics-event-limit");
+                if (icsEventLimit <= 0 || icsEventLimit > maxIcsEventLimit)
+                    throw new RestFieldException(i18nHelper.getText("ru.mail.jira.plugins.calendar.dialog.eventLimit.error", String.valueOf(maxIcsEventLimit)), "ics-event-limit");
+                Integer eventIndexSize = pluginSettingsDto.getEventIndexSize();
+                if (eventIndexSize != null && (eventIndexSize < 0 || eventIndexSize > PluginSettingsService.MAX_EVENT_INDEX_SIZE))
+                    throw new RestFieldException(i18nHelper.getText("ru.mail.jira.plugins.calendar.settings.eventIndexSize.error", String.valueOf(PluginSettingsService.MAX_EVENT_INDEX_SIZE)), "event-index-size");
+
+                pluginSettingsService.setEventLimit(eventLimit);
+                pluginSettingsService.setMaxEventLimit(maxEventLimit);
+                if (searchThreads != null)
+                    pluginSettingsService.setSearchThreads(searchThreads);
+                pluginSettingsService.setMaxIcsMonths(maxIcsMonths);
+                pluginSettingsService.setIcsMonthsBefore(icsMonthsBefore);
+                pluginSettingsService.setIcsMonthsAfter(icsMonthsAfter);
+                pluginSettingsService.setMaxIcsEventLimit(maxIcsEventLimit);
+                pluginSettingsService.setIcsEventLimit(icsEventLimit);
+                if (eventIndexSize != null)
+                    pluginSettingsService.setEventIndexSize(eventIndexSize);
+                calendarEventCache.invalidateAll();
+                calendarEventIndex.invalidateAll();
+                return null;
+            }
+        }.getResponse();
+    }
+
     @GET
     @Path("/displayedFields")
     public Map<String, String> getDisplayedFields() {
@@ -192,67 +278,32 @@ public class RestConfigurationService {
 
     private void fillProjectRoles(ApplicationUser user, String filter, PermissionSubjectDto subjectDto) {
         List<PermissionItemDto> result = new ArrayList<PermissionItemDto>();
-        filter = filter.trim().toLowerCase();
-
-        List<Project> allProjects = isAdministrator(user) ? projectManager.getProjectObjects() : projectService.getAllProjects(user).get();
-        Collection<ProjectRole> projectRoles = projectRoleManager.getProjectRoles();
-        if (StringUtils.isEmpty(filter)) {
-            for (Project project : allProjects) {
-                for (ProjectRole role : projectRoles)
-                    result.add(PermissionItemDto.buildProjectRoleDto(PermissionUtils.projectRoleSubject(project.getId(), role.getId()),
-                                                                     String.format("%s (%s)", project.getName(), project.getKey()), role.getName(),
-                                                                     null,
-                                                                     String.format("projectavatar?pid=%d&avatarId=%d&size=xxmall", project.getId(), project.getAvatar().getId())));
-                if (result.size() >= 10)
-                    break;
-            }
-            subjectDto.setProjectRolesCount(projectRoles.size() * allProjects.size());
-        } else {
-            int count = 0;
-            long lastAddedProjectId = -1;
-            for (Project project : allProjects)
-                for (ProjectRole role : projectRoles)
-                    if (StringUtils.containsIgnoreCase(role.getName(), filter)
-                            || StringUtils.containsIgnoreCase(project.getName(), filter)
-                            || StringUtils.containsIgnoreCase(project.getKey(), filter)) {
-                        count++;
-                        if (result.size() < 10 || lastAddedProjectId == project.getId()) {
-                            lastAddedProjectId = project.getId();
-                            result.add(PermissionItemDto.buildProjectRoleDto(PermissionUtils.projectRoleSubject(project.getId(), role.getId()),
-                                                                             String.format("%s (%s)", project.getName(), project.getKey()), role.getName(),
-                                                                             null,
-                                                                             String.format("projectavatar?pid=%d&avatarId=%d&size=xxmall", project.getId(), project.getAvatar().getId())));
-                        }
-                    }
-            subjectDto.setProjectRolesCount(count);
-        }
+        PermissionSubjectIndex.Matches<PermissionSubjectIndex.ProjectRoleSubject> projectRoles = permissionSubjectIndex.findProjectRoles(filter, isAdministrator(user) ? null : user, 10);
+        for (PermissionSubjectIndex.ProjectRoleSubject subject : projectRoles.getItems())
+            result.add(PermissionItemDto.buildProjectRoleDto(PermissionUtils.projectRoleSubject(subject.getProjectId(), subject.getRoleId()),
+                                                             String.format("%s (%s)", subject.getProjectName(), subject.getProjectKey()), subject.getRoleName(),
+                                                             null,
+                                                             String.format("projectavatar?pid=%d&avatarId=%d&size=xxmall", subject.getProjectId(), subject.getProjectAvatarId())));
+        subjectDto.setProjectRolesCount(projectRoles.getTotal());
         subjectDto.setProjectRoles(result);
-
     }
 
     private void fillGroups(ApplicationUser user, String filter, PermissionSubjectDto subjectDto) {
-        filter = filter.trim().toLowerCase();
-
-        Collection<Group> groups = isAdministrator(user) ? groupManager.getAllGroups() : groupManager.getGroupsForUser(user.getName());
         List<PermissionItemDto> result = new ArrayList<PermissionItemDto>();
-
-        if (StringUtils.isEmpty(filter)) {
-            for (Group group : groups) {
+        if (isAdministrator(user)) {
+            PermissionSubjectIndex.Matches<Group> groups = permissionSubjectIndex.findGroups(filter, 10);
+            for (Group group : groups.getItems())
                 result.add(PermissionItemDto.buildGroupDto(group.getName(), group.getName(), null));
-                if (result.size() >= 10)
-                    break;
-            }
-            subjectDto.setGroupsCount(groups.size());
-        } else {
-            int count = 0;
-            for (Group group : groups)
-                if (StringUtils.containsIgnoreCase(group.getName(), filter)) {
-                    count++;
-                    if (result.size() < 10)
-                        result.add(PermissionItemDto.buildGroupDto(group.getName(), group.getName(), null));
-                }
-            subjectDto.setGroupsCount(count);
+            subjectDto.setGroupsCount(groups.getTotal());
+            subjectDto.setGroups(result);
+            return;
         }
+
+        // Users see their own groups only, they are matched the same way as all groups are for administrators
+        PermissionSubjectIndex.Matches<Group> groups = permissionSubjectIndex.findGroups(filter, groupManager.getGroupNamesForUser(user), 10);
+        for (Group group : groups.getItems())
+            result.add(PermissionItemDto.buildGroupDto(group.getName(), group.getName(), null));
+        subjectDto.setGroupsCount(groups.getTotal());
         subjectDto.setGroups(result);
     }
 
@@ -260,36 +311,14 @@ public class RestConfigurationService {
         List<PermissionItemDto> result = new ArrayList<PermissionItemDto>();
         if (!globalPermissionManager.hasPermission(GlobalPermissionKey.USER_PICKER, jiraAuthenticationContext.getLoggedInUser()))
             return;
-        filter = filter.trim().toLowerCase();
 
-        Collection<ApplicationUser> users = userManager.getAllApplicationUsers();
-
-        if (StringUtils.isEmpty(filter)) {
-            for (ApplicationUser user : users) {
-                result.add(PermissionItemDto.buildUserDto(user.getKey(),
-                                                          user.getDisplayName(), user.getEmailAddress(), user.getName(),
-                                                          null,
-                                                          getUserAvatarSrc(user)));
-                if (result.size() >= 10)
-                    break;
-            }
-            subjectDto.setUsersCount(users.size());
-        } else {
-            int count = 0;
-            for (ApplicationUser user : users) {
-                if (user.isActive() && (StringUtils.containsIgnoreCase(user.getDisplayName(), filter)
-                        || StringUtils.containsIgnoreCase(user.getName(), filter)
-                        || StringUtils.containsIgnoreCase(user.getEmailAddress(), filter))) {
-                    count++;
-                    if (result.size() < 10)
-                        result.add(PermissionItemDto.buildUserDto(user.getKey(),
-                                                                  user.getDisplayName(), user.getEmailAddress(), user.getName(),
-                                                                  null,
-                                                                  getUserAvatarSrc(user)));
-                }
-            }
-            subjectDto.setUsersCount(count);
-        }
+        PermissionSubjectIndex.Matches<ApplicationUser> users = permissionSubjectIndex.findUsers(filter, 10);
+        for (ApplicationUser user : users.getItems())
+            result.add(PermissionItemDto.buildUserDto(user.getKey(),
+                                                      user.getDisplayName(), user.getEmailAddress(), user.getName(),
+                                                      null,
+                                                      getUserAvatarSrc(user)));
+        subjectDto.setUsersCount(users.getTotal());
         subjectDto.setUsers(result);
     }
 
@@ -32,6 +32,8 @@ public class CalendarSettingDto {
     private String selectedEventEndId;
     @XmlElement
     private String selectedEventEndName;
+    @XmlElement
+    private Integer selectedEventLimit;
 
     @XmlElement
     private Map<String, String> displayedFields;
@@ -139,6 +141,14 @@ public class CalendarSettingDto {
         this.selectedEventEndName = selectedEventEndName;
     }
 
+    public Integer getSelectedEventLimit() {
+        return selectedEventLimit;
+    }
+
+    public void setSelectedEventLimit(Integer selectedEventLimit) {
+        this.selectedEventLimit = selectedEventLimit;
+    }
+
     public Map<String, String> getDisplayedFields() {
         return displayedFields;
     }
@@ -1,7 +1,11 @@
 package ru.mail.jira.plugins.calendar.rest.dto;
 
+import com.atlassian.jira.datetime.DateTimeFormatter;
+
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
+import java.util.Date;
 
 @SuppressWarnings({"UnusedDeclaration", "FieldCanBeLocal"})
 @XmlRootElement
@@ -29,6 +33,12 @@ public class Event {
     @XmlElement
     private IssueInfo issueInfo;
 
+    private long issueId;
+    private long startTime;
+    private boolean startDateOnly;
+    private Long endTime;
+    private boolean endDateOnly;
+
     public String getId() {
         return id;
     }
@@ -109,6 +119,72 @@ public class Event {
         this.startEditable = startEditable;
     }
 
+    @XmlTransient
+    public long getIssueId() {
+        return issueId;
+    }
+
+    public void setIssueId(long issueId) {
+        this.issueId = issueId;
+    }
+
+    /**
+     * Epoch millis of the event start, date-only values are at the start of the day in the server time zone
+     */
+    @XmlTransient
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(long startTime, boolean dateOnly) {
+        this.startTime = startTime;
+        this.startDateOnly = dateOnly;
+    }
+
+    /**
+     * Epoch millis of the exclusive event end or null if the event has no end
+     */
+    @XmlTransient
+    public Long getEndTime() {
+        return endTime;
+    }
+
+    @XmlTransient
+    public boolean isEndDateOnly() {
+        return endDateOnly;
+    }
+
+    public void setEndTime(Long endTime, boolean dateOnly) {
+        this.endTime = endTime;
+        this.endDateOnly = dateOnly;
+    }
+
+    /**
+     * Events are shared through the cache, so the start and end strings of one user are filled in a copy
+     * which is written as JSON instead of the event itself
+     */
+    public Event formatDates(DateTimeFormatter userDateFormat, DateTimeFormatter userDateTimeFormat) {
+        DateTimeFormatter systemDateFormat = userDateFormat.withSystemZone();
+        Event result = new Event();
+        result.id = id;
+        result.issueKey = issueKey;
+        result.calendarId = calendarId;
+        result.allDay = allDay;
+        result.color = color;
+        result.title = title;
+        result.durationEditable = durationEditable;
+        result.startEditable = startEditable;
+        result.issueInfo = issueInfo;
+        result.issueId = issueId;
+        result.startTime = startTime;
+        result.startDateOnly = startDateOnly;
+        result.endTime = endTime;
+        result.endDateOnly = endDateOnly;
+        result.start = (startDateOnly ? systemDateFormat : userDateTimeFormat).format(new Date(startTime));
+        result.end = endTime != null ? (endDateOnly ? systemDateFormat : userDateTimeFormat).format(new Date(endTime)) : null;
+        return result;
+    }
+
     public IssueInfo getIssueInfo() {
         return issueInfo;
     }
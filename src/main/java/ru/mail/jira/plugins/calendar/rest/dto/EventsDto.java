@@ -0,0 +1,33 @@
+package ru.mail.jira.plugins.calendar.rest.dto;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.List;
+
+/**
+ * Events of one calendar. Truncated is set when the calendar has more events in the window than its limit.
+ */
+@SuppressWarnings({"UnusedDeclaration", "FieldCanBeLocal"})
+@XmlRootElement
+public class EventsDto {
+    @XmlElement
+    private List<Event> events;
+    @XmlElement
+    private boolean truncated;
+
+    public EventsDto() {
+    }
+
+    public EventsDto(List<Event> events, boolean truncated) {
+        this.events = events;
+        this.truncated = truncated;
+    }
+
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+}
@@ -0,0 +1,99 @@
+package ru.mail.jira.plugins.calendar.rest.dto;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+@SuppressWarnings({"UnusedDeclaration", "FieldCanBeLocal"})
+@XmlRootElement
+public class PluginSettingsDto {
+    @XmlElement
+    private Integer eventLimit;
+    @XmlElement
+    private Integer maxEventLimit;
+    @XmlElement
+    private Integer searchThreads;
+    @XmlElement
+    private Integer icsMonthsBefore;
+    @XmlElement
+    private Integer icsMonthsAfter;
+    @XmlElement
+    private Integer maxIcsMonths;
+    @XmlElement
+    private Integer icsEventLimit;
+    @XmlElement
+    private Integer maxIcsEventLimit;
+    @XmlElement
+    private Integer eventIndexSize;
+
+    public Integer getEventLimit() {
+        return eventLimit;
+    }
+
+    public void setEventLimit(Integer eventLimit) {
+        this.eventLimit = eventLimit;
+    }
+
+    public Integer getMaxEventLimit() {
+        return maxEventLimit;
+    }
+
+    public void setMaxEventLimit(Integer maxEventLimit) {
+        this.maxEventLimit = maxEventLimit;
+    }
+
+    public Integer getSearchThreads() {
+        return searchThreads;
+    }
+
+    public void setSearchThreads(Integer searchThreads) {
+        this.searchThreads = searchThreads;
+    }
+
+    public Integer getIcsMonthsBefore() {
+        return icsMonthsBefore;
+    }
+
+    public void setIcsMonthsBefore(Integer icsMonthsBefore) {
+        this.icsMonthsBefore = icsMonthsBefore;
+    }
+
+    public Integer getIcsMonthsAfter() {
+        return icsMonthsAfter;
+    }
+
+    public void setIcsMonthsAfter(Integer icsMonthsAfter) {
+        this.icsMonthsAfter = icsMonthsAfter;
+    }
+
+    public Integer getMaxIcsMonths() {
+        return maxIcsMonths;
+    }
+
+    public void setMaxIcsMonths(Integer maxIcsMonths) {
+        this.maxIcsMonths = maxIcsMonths;
+    }
+
+    public Integer getIcsEventLimit() {
+        return icsEventLimit;
+    }
+
+    public void setIcsEventLimit(Integer icsEventLimit) {
+        this.icsEventLimit = icsEventLimit;
+    }
+
+    public Integer getMaxIcsEventLimit() {
+        return maxIcsEventLimit;
+    }
+
+    public void setMaxIcsEventLimit(Integer maxIcsEventLimit) {
+        this.maxIcsEventLimit = maxIcsEventLimit;
+    }
+
+    public Integer getEventIndexSize() {
+        return eventIndexSize;
+    }
+
+    public void setEventIndexSize(Integer eventIndexSize) {
+        this.eventIndexSize = eventIndexSize;
+    }
+}
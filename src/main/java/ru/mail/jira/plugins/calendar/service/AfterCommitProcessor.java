@@ -0,0 +1,90 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import com.atlassian.activeobjects.external.TransactionalAnnotationProcessor;
+import com.atlassian.activeobjects.tx.Transactional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Runs actions registered by {@link Transactional} services once the outermost call of such a service returns,
+ * that is once its transaction is committed or rolled back. Services are wrapped around the proxies of
+ * {@link TransactionalAnnotationProcessor}, so this processor has to be declared after it in atlassian-plugin.xml.
+ */
+public class AfterCommitProcessor implements BeanPostProcessor {
+    private final static Logger log = LoggerFactory.getLogger(AfterCommitProcessor.class);
+
+    private final static ThreadLocal<Calls> calls = new ThreadLocal<Calls>();
+
+    /**
+     * Runs the action at once outside of {@link Transactional} services, equal actions registered
+     * in one transaction are run once
+     */
+    public static void runAfterCommit(Runnable action) {
+        Calls current = calls.get();
+        if (current == null)
+            action.run();
+        else
+            current.actions.add(action);
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(final Object bean, String beanName) {
+        Class<?>[] interfaces = ClassUtils.getAllInterfaces(bean);
+        boolean transactional = false;
+        for (Class<?> type : interfaces)
+            if (type.isAnnotationPresent(Transactional.class))
+                transactional = true;
+        if (!transactional)
+            return bean;
+
+        return Proxy.newProxyInstance(getClass().getClassLoader(), interfaces, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                Calls current = calls.get();
+                if (current == null) {
+                    current = new Calls();
+                    calls.set(current);
+                }
+                current.depth++;
+                try {
+                    return method.invoke(bean, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                } finally {
+                    if (--current.depth == 0) {
+                        calls.remove();
+                        runActions(current.actions);
+                    }
+                }
+            }
+        });
+    }
+
+    private static void runActions(Set<Runnable> actions) {
+        for (Runnable action : actions)
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                log.error("Error while running action after commit", e);
+            }
+    }
+
+    private static final class Calls {
+        private final Set<Runnable> actions = new LinkedHashSet<Runnable>();
+        private int depth;
+    }
+}
@@ -0,0 +1,543 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheEntryAdapter;
+import com.atlassian.cache.CacheEntryEvent;
+import com.atlassian.cache.CacheLoader;
+import com.atlassian.cache.CacheManager;
+import com.atlassian.cache.CacheSettingsBuilder;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.jira.cluster.ClusterManager;
+import com.atlassian.jira.issue.search.SearchRequest;
+import com.atlassian.jira.issue.search.SearchRequestUpdatedEvent;
+import com.atlassian.query.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import ru.mail.jira.plugins.calendar.rest.dto.EventsDto;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of found events, of rendered ICS feeds, of compiled calendar plans, of parsed queries of filter and
+ * JQL calendars and of rendered fields of issues. Entries are dropped on calendar updates, events and feeds also on
+ * {@link CalendarEventsChangedEvent} for the windows overlapping the changed ranges only, queries of filters also on
+ * filter updates. Rendered fields are keyed by the update time of their issue, so changes of the issue are never missed.
+ * <p>
+ * Issue events are published on the node where the issue changed only. On a cluster they also drop the change token
+ * of the calendar, which is replicated to all nodes, and events, feeds and event indexes found with an older token are
+ * not used any more. Other nodes update their issue index a few seconds later, a search in between may be kept under
+ * the new token until it expires after {@link #EXPIRE_AFTER_WRITE_MINUTES}.
+ */
+public class CalendarEventCache implements InitializingBean, DisposableBean {
+    private final static Logger log = LoggerFactory.getLogger(CalendarEventCache.class);
+
+    private final static String CACHE_NAME = CalendarEventCache.class.getName() + ".events";
+    private final static int MAX_ENTRIES = 1000;
+    private final static int MAX_ENTRY_EVENTS = 2000;
+    private final static int MAX_EVENTS = 100000;
+    private final static int EXPIRE_AFTER_WRITE_MINUTES = 5;
+    private final static String FEED_CACHE_NAME = CalendarEventCache.class.getName() + ".feeds";
+    private final static int MAX_FEEDS = 200;
+    private final static long MAX_FEED_BYTES = 64 * 1024 * 1024;
+    private final static String PLAN_CACHE_NAME = CalendarEventCache.class.getName() + ".plans";
+    private final static int EXPIRE_PLANS_AFTER_WRITE_MINUTES = 60;
+    private final static String QUERY_CACHE_NAME = CalendarEventCache.class.getName() + ".queries";
+    private final static String FRAGMENT_CACHE_NAME = CalendarEventCache.class.getName() + ".fragments";
+    private final static int MAX_FRAGMENTS = 10000;
+    private final static String CHANGE_CACHE_NAME = CalendarEventCache.class.getName() + ".changes";
+
+    private final ClusterManager clusterManager;
+    private final EventPublisher eventPublisher;
+    private final Cache<Key, EventsDto> cache;
+    private final Cache<String, Feed> feedCache;
+    private final Cache<Integer, CalendarPlan> planCache;
+    private final Cache<QueryKey, Query> queryCache;
+    private final Cache<FragmentKey, String> fragmentCache;
+    private final Cache<Integer, String> changeCache;
+    // Running totals kept by cache listeners, so puts do not walk all entries
+    private final AtomicLong cachedEvents = new AtomicLong();
+    private final AtomicLong cachedFeedBytes = new AtomicLong();
+    private final CacheEntryAdapter<Key, EventsDto> eventsListener = new CacheEntryAdapter<Key, EventsDto>() {
+        @Override
+        public void onAdd(@Nonnull CacheEntryEvent<Key, EventsDto> event) {
+            cachedEvents.addAndGet(size(event.getValue()));
+        }
+
+        @Override
+        public void onUpdate(@Nonnull CacheEntryEvent<Key, EventsDto> event) {
+            cachedEvents.addAndGet(size(event.getValue()) - size(event.getOldValue()));
+        }
+
+        @Override
+        public void onRemove(@Nonnull CacheEntryEvent<Key, EventsDto> event) {
+            cachedEvents.addAndGet(-size(event.getOldValue()));
+        }
+
+        @Override
+        public void onEvict(@Nonnull CacheEntryEvent<Key, EventsDto> event) {
+            cachedEvents.addAndGet(-size(event.getOldValue()));
+        }
+    };
+    private final CacheEntryAdapter<String, Feed> feedsListener = new CacheEntryAdapter<String, Feed>() {
+        @Override
+        public void onAdd(@Nonnull CacheEntryEvent<String, Feed> event) {
+            cachedFeedBytes.addAndGet(size(event.getValue()));
+        }
+
+        @Override
+        public void onUpdate(@Nonnull CacheEntryEvent<String, Feed> event) {
+            cachedFeedBytes.addAndGet(size(event.getValue()) - size(event.getOldValue()));
+        }
+
+        @Override
+        public void onRemove(@Nonnull CacheEntryEvent<String, Feed> event) {
+            cachedFeedBytes.addAndGet(-size(event.getOldValue()));
+        }
+
+        @Override
+        public void onEvict(@Nonnull CacheEntryEvent<String, Feed> event) {
+            cachedFeedBytes.addAndGet(-size(event.getOldValue()));
+        }
+    };
+
+    public CalendarEventCache(CacheManager cacheManager, ClusterManager clusterManager, EventPublisher eventPublisher) {
+        this.clusterManager = clusterManager;
+        this.eventPublisher = eventPublisher;
+        this.cache = cacheManager.getCache(CACHE_NAME, null, new CacheSettingsBuilder().local()
+                                                                                      .maxEntries(MAX_ENTRIES)
+                                                                                      .expireAfterWrite(EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                                                                                      .build());
+        this.feedCache = cacheManager.getCache(FEED_CACHE_NAME, null, new CacheSettingsBuilder().local()
+                                                                                               .maxEntries(MAX_FEEDS)
+                                                                                               .expireAfterWrite(EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                                                                                               .build());
+        // Plans hold JIRA objects and are compiled on every node, other nodes only drop them on calendar updates
+        this.planCache = cacheManager.getCache(PLAN_CACHE_NAME, null, new CacheSettingsBuilder().remote()
+                                                                                               .replicateViaInvalidation()
+                                                                                               .expireAfterWrite(EXPIRE_PLANS_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                                                                                               .build());
+        // Filter updates are published on the node where they happen only, the expiry bounds staleness on other nodes
+        this.queryCache = cacheManager.getCache(QUERY_CACHE_NAME, null, new CacheSettingsBuilder().local()
+                                                                                                 .maxEntries(MAX_ENTRIES)
+                                                                                                 .expireAfterWrite(EXPIRE_PLANS_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                                                                                                 .build());
+        this.fragmentCache = cacheManager.getCache(FRAGMENT_CACHE_NAME, null, new CacheSettingsBuilder().local()
+                                                                                                       .maxEntries(MAX_FRAGMENTS)
+                                                                                                       .expireAfterAccess(EXPIRE_PLANS_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                                                                                                       .build());
+        // A dropped token is loaded again as a new one on each node, so all nodes agree that older entries are stale
+        this.changeCache = cacheManager.getCache(CHANGE_CACHE_NAME, new CacheLoader<Integer, String>() {
+            @Nonnull
+            @Override
+            public String load(@Nonnull Integer calendarId) {
+                return UUID.randomUUID().toString();
+            }
+        }, new CacheSettingsBuilder().remote()
+                                     .replicateViaInvalidation()
+                                     .build());
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        cache.addListener(eventsListener, true);
+        feedCache.addListener(feedsListener, true);
+        // Entries left from before the listeners were added are not counted
+        removeAllEvents();
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        eventPublisher.unregister(this);
+        cache.removeListener(eventsListener);
+        feedCache.removeListener(feedsListener);
+        removeAllEvents();
+        planCache.removeAll();
+        queryCache.removeAll();
+        fragmentCache.removeAll();
+    }
+
+    public EventsDto get(Key key) {
+        return cache.get(key);
+    }
+
+    /**
+     * Large calendars are searched every time, other events are cached while all cached events together
+     * fit into {@link #MAX_EVENTS}. Concurrent puts may exceed it by {@link #MAX_ENTRY_EVENTS} each.
+     */
+    public void put(Key key, EventsDto events) {
+        int size = size(events);
+        if (size > MAX_ENTRY_EVENTS)
+            return;
+        long totalEvents = cachedEvents.get() + size;
+        if (totalEvents > MAX_EVENTS) {
+            if (log.isDebugEnabled())
+                log.debug("Events of calendar {} are not cached, cached events would be {}", key.calendarId, totalEvents);
+            return;
+        }
+        cache.put(key, events);
+    }
+
+    /**
+     * @param feed calendar ids and parameters of the feed
+     */
+    @Nullable
+    public Feed getFeed(String icalUid, String feed, Collection<Integer> calendarIds) {
+        Feed content = feedCache.get(icalUid + "/" + feed);
+        return content != null && content.changeToken.equals(getChangeToken(calendarIds)) ? content : null;
+    }
+
+    /**
+     * Feeds are cached while all of them together fit into {@link #MAX_FEED_BYTES}, the rest is streamed
+     * until cached feeds expire or are dropped
+     */
+    public void putFeed(String icalUid, String feed, Feed content) {
+        long feedBytes = cachedFeedBytes.get() + size(content);
+        if (feedBytes > MAX_FEED_BYTES) {
+            if (log.isDebugEnabled())
+                log.debug("Feed {}/{} is not cached, cached feeds would take {} bytes", new Object[]{icalUid, feed, feedBytes});
+            return;
+        }
+        feedCache.put(icalUid + "/" + feed, content);
+    }
+
+    public CalendarPlan getPlan(int calendarId) {
+        return planCache.get(calendarId);
+    }
+
+    public void putPlan(CalendarPlan plan) {
+        planCache.put(plan.getId(), plan);
+    }
+
+    public Query getQuery(QueryKey key) {
+        return queryCache.get(key);
+    }
+
+    public void putQuery(QueryKey key, Query query) {
+        queryCache.put(key, query);
+    }
+
+    /**
+     * @return rendered html of the issue field, empty if the field has nothing to show
+     */
+    public String getFragment(FragmentKey key) {
+        return fragmentCache.get(key);
+    }
+
+    public void putFragment(FragmentKey key, String html) {
+        fragmentCache.put(key, html);
+    }
+
+    /**
+     * @return token of the current state of events of the calendar, it changes when events change on any node of a cluster
+     */
+    public String getChangeToken(int calendarId) {
+        return changeCache.get(calendarId);
+    }
+
+    public String getChangeToken(Collection<Integer> calendarIds) {
+        StringBuilder changeToken = new StringBuilder();
+        for (Integer calendarId : calendarIds)
+            changeToken.append(getChangeToken(calendarId)).append('|');
+        return changeToken.toString();
+    }
+
+    public void invalidateAll() {
+        removeAllEvents();
+        planCache.removeAll();
+        queryCache.removeAll();
+        fragmentCache.removeAll();
+    }
+
+    public void invalidateCalendar(int calendarId) {
+        if (clusterManager.isClustered())
+            changeCache.remove(calendarId);
+        planCache.remove(calendarId);
+        for (QueryKey key : queryCache.getKeys())
+            if (key.calendarId == calendarId)
+                queryCache.remove(key);
+        for (Key key : cache.getKeys())
+            if (key.calendarId == calendarId)
+                cache.remove(key);
+        for (String feedKey : feedCache.getKeys()) {
+            Feed feed = feedCache.get(feedKey);
+            if (feed != null && feed.calendarIds.contains(calendarId))
+                feedCache.remove(feedKey);
+        }
+    }
+
+    /**
+     * Drops events of the calendars found for windows overlapping the changed ranges and feeds of these calendars
+     */
+    @EventListener
+    public void onCalendarEventsChanged(CalendarEventsChangedEvent event) {
+        if (log.isDebugEnabled())
+            log.debug("invalidate events for issueId={}, ranges={}", event.getIssueId(), event.getRanges());
+        // Other nodes can not tell the changed ranges, so they drop everything of the calendars
+        if (clusterManager.isClustered())
+            for (Integer calendarId : event.getRanges().keySet())
+                changeCache.remove(calendarId);
+        for (Key key : cache.getKeys()) {
+            CalendarEventsChangedEvent.Range range = event.getRanges().get(key.calendarId);
+            if (range != null && isOverlapped(key, range))
+                cache.remove(key);
+        }
+        for (String feedKey : feedCache.getKeys()) {
+            Feed feed = feedCache.get(feedKey);
+            if (feed != null)
+                for (Integer calendarId : feed.calendarIds)
+                    if (event.getRanges().containsKey(calendarId)) {
+                        feedCache.remove(feedKey);
+                        break;
+                    }
+        }
+    }
+
+    /**
+     * Drops parsed queries of the updated filter, events found with the old query expire on their own
+     */
+    @EventListener
+    public void onSearchRequestUpdated(SearchRequestUpdatedEvent event) {
+        SearchRequest filter = event.getSearchRequest();
+        if (filter == null || filter.getId() == null)
+            return;
+        if (log.isDebugEnabled())
+            log.debug("invalidate queries of filterId={}", filter.getId());
+        String source = "filter_" + filter.getId();
+        for (QueryKey key : queryCache.getKeys())
+            if (source.equals(key.source))
+                queryCache.remove(key);
+    }
+
+    /**
+     * Removing all entries does not notify listeners of each entry, so the totals are reset
+     */
+    private void removeAllEvents() {
+        cache.removeAll();
+        cachedEvents.set(0);
+        feedCache.removeAll();
+        cachedFeedBytes.set(0);
+    }
+
+    private static int size(@Nullable EventsDto events) {
+        return events != null ? events.getEvents().size() : 0;
+    }
+
+    private static int size(@Nullable Feed feed) {
+        return feed != null ? feed.content.length : 0;
+    }
+
+    private static boolean isOverlapped(Key key, CalendarEventsChangedEvent.Range range) {
+        if (range == CalendarEventsChangedEvent.Range.ALL)
+            return true;
+        try {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            return range.overlaps(dateFormat.parse(key.start).getTime(), dateFormat.parse(key.end).getTime());
+        } catch (ParseException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Events depend on the calendar definition (its plan fingerprint), the requested window and on what the user may see and edit.
+     * Issue security and edit rights can be granted to a single user (reporter, assignee),
+     * so the user key is used as the permission fingerprint.
+     */
+    public static Key key(CalendarPlan plan, String changeToken, String start, String end, String userKey, boolean includeIssueInfo, boolean plainIssueInfo, int eventLimit) {
+        return new Key(plan.getId(), changeToken, plan.getFingerprint(),
+                       includeIssueInfo ? plan.getDisplayedFieldsValue() : null, start, end, userKey, includeIssueInfo, includeIssueInfo && plainIssueInfo, eventLimit);
+    }
+
+    /**
+     * JQL is parsed the same way for all users, so its query is shared by them. Filters are shared with some users
+     * only, so their queries are kept per user who has already been allowed to read the filter.
+     */
+    public static QueryKey queryKey(CalendarPlan plan, String userKey) {
+        return new QueryKey(plan.getId(), plan.getSource(), plan.getSourceType() == CalendarPlan.SourceType.FILTER ? userKey : null);
+    }
+
+    /**
+     * Rendered fields depend on the issue state and on the language of the user only
+     */
+    public static FragmentKey fragmentKey(long issueId, String fieldId, @Nullable Date updated, Locale locale) {
+        return new FragmentKey(issueId, fieldId, updated != null ? updated.getTime() : 0, locale.toString());
+    }
+
+    /**
+     * Rendered ICS feed with the ETag sent to subscribers
+     */
+    public static final class Feed implements Serializable {
+        private final byte[] content;
+        private final String etag;
+        private final Set<Integer> calendarIds;
+        private final String changeToken;
+
+        /**
+         * @param changeToken token of the calendars from {@link #getChangeToken(Collection)} taken before their events were found
+         */
+        public Feed(byte[] content, String etag, Set<Integer> calendarIds, String changeToken) {
+            this.content = content;
+            this.etag = etag;
+            this.calendarIds = calendarIds;
+            this.changeToken = changeToken;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+    }
+
+    public static final class Key implements Serializable {
+        private final int calendarId;
+        private final String changeToken;
+        private final String fingerprint;
+        private final String displayedFields;
+        private final String start;
+        private final String end;
+        private final String userKey;
+        private final boolean includeIssueInfo;
+        private final boolean plainIssueInfo;
+        private final int eventLimit;
+
+        private Key(int calendarId, String changeToken, String fingerprint, String displayedFields,
+                    String start, String end, String userKey, boolean includeIssueInfo, boolean plainIssueInfo, int eventLimit) {
+            this.calendarId = calendarId;
+            this.changeToken = changeToken;
+            this.fingerprint = fingerprint;
+            this.displayedFields = displayedFields;
+            this.start = start;
+            this.end = end;
+            this.userKey = userKey;
+            this.includeIssueInfo = includeIssueInfo;
+            this.plainIssueInfo = plainIssueInfo;
+            this.eventLimit = eventLimit;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+
+            Key key = (Key) o;
+            return calendarId == key.calendarId
+                    && includeIssueInfo == key.includeIssueInfo
+                    && plainIssueInfo == key.plainIssueInfo
+                    && eventLimit == key.eventLimit
+                    && equal(changeToken, key.changeToken)
+                    && equal(fingerprint, key.fingerprint)
+                    && equal(displayedFields, key.displayedFields)
+                    && equal(start, key.start)
+                    && equal(end, key.end)
+                    && equal(userKey, key.userKey);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = calendarId;
+            result = 31 * result + (changeToken != null ? changeToken.hashCode() : 0);
+            result = 31 * result + (fingerprint != null ? fingerprint.hashCode() : 0);
+            result = 31 * result + (displayedFields != null ? displayedFields.hashCode() : 0);
+            result = 31 * result + (start != null ? start.hashCode() : 0);
+            result = 31 * result + (end != null ? end.hashCode() : 0);
+            result = 31 * result + (userKey != null ? userKey.hashCode() : 0);
+            result = 31 * result + (includeIssueInfo ? 1 : 0);
+            result = 31 * result + (plainIssueInfo ? 1 : 0);
+            result = 31 * result + eventLimit;
+            return result;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    public static final class QueryKey {
+        private final int calendarId;
+        private final String source;
+        private final String userKey;
+
+        private QueryKey(int calendarId, String source, String userKey) {
+            this.calendarId = calendarId;
+            this.source = source;
+            this.userKey = userKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+
+            QueryKey key = (QueryKey) o;
+            return calendarId == key.calendarId
+                    && Key.equal(source, key.source)
+                    && Key.equal(userKey, key.userKey);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = calendarId;
+            result = 31 * result + (source != null ? source.hashCode() : 0);
+            result = 31 * result + (userKey != null ? userKey.hashCode() : 0);
+            return result;
+        }
+    }
+
+    public static final class FragmentKey {
+        private final long issueId;
+        private final String fieldId;
+        private final long updated;
+        private final String locale;
+
+        private FragmentKey(long issueId, String fieldId, long updated, String locale) {
+            this.issueId = issueId;
+            this.fieldId = fieldId;
+            this.updated = updated;
+            this.locale = locale;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+
+            FragmentKey key = (FragmentKey) o;
+            return issueId == key.issueId
+                    && updated == key.updated
+                    && Key.equal(fieldId, key.fieldId)
+                    && Key.equal(locale, key.locale);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (issueId ^ (issueId >>> 32));
+            result = 31 * result + (fieldId != null ? fieldId.hashCode() : 0);
+            result = 31 * result + (int) (updated ^ (updated >>> 32));
+            result = 31 * result + (locale != null ? locale.hashCode() : 0);
+            return result;
+        }
+    }
+}
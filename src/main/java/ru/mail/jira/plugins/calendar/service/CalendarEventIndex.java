@@ -0,0 +1,288 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import ru.mail.jira.plugins.calendar.rest.dto.Event;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Optional in-memory interval indexes of events built per calendar and user. An index holds all events of a horizon
+ * around the day it was built, so any window inside the horizon is answered without a search. {@link CalendarEventsChangedEvent}
+ * marks changed issues of the affected indexes, only these issues are searched again by the next request to the index.
+ * Indexes over the memory budget from {@link PluginSettingsService#getEventIndexSize()} are evicted in the least
+ * recently used order, requests to evicted ones fall back to the search. On a cluster changes on other nodes are seen
+ * through {@link CalendarEventCache#getChangeToken(int)}, an index built with an older token is built again.
+ */
+public class CalendarEventIndex implements InitializingBean, DisposableBean {
+    private final static Logger log = LoggerFactory.getLogger(CalendarEventIndex.class);
+
+    private final static int HORIZON_MONTHS = 6;
+    // Permission changes do not produce issue events, so indexes are rebuilt from time to time
+    private final static long EXPIRE_AFTER_MILLIS = 15 * 60 * 1000L;
+    private final static int MAX_CHANGED_ISSUES = 500;
+
+    private final CalendarEventCache calendarEventCache;
+    private final EventPublisher eventPublisher;
+    private final PluginSettingsService pluginSettingsService;
+    private final Map<String, Index> indexes = new LinkedHashMap<String, Index>(16, 0.75f, true);
+    private final Map<String, Long> unindexableUntil = new HashMap<String, Long>();
+    // Counts changes of events per calendar, an index built while its calendar changed is stale
+    private final Map<Integer, Long> generations = new HashMap<Integer, Long>();
+
+    public CalendarEventIndex(CalendarEventCache calendarEventCache, EventPublisher eventPublisher, PluginSettingsService pluginSettingsService) {
+        this.calendarEventCache = calendarEventCache;
+        this.eventPublisher = eventPublisher;
+        this.pluginSettingsService = pluginSettingsService;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        eventPublisher.unregister(this);
+        invalidateAll();
+    }
+
+    public boolean isEnabled() {
+        return pluginSettingsService.getEventIndexSize() > 0;
+    }
+
+    /**
+     * @return actual index of the calendar for the user or null if it has to be built
+     */
+    @Nullable
+    public synchronized Index get(CalendarPlan plan, String userKey) {
+        String key = key(plan.getId(), userKey);
+        Index index = indexes.get(key);
+        if (index == null)
+            return null;
+        if (index.created + EXPIRE_AFTER_MILLIS < System.currentTimeMillis() || !index.fingerprint.equals(plan.getFingerprint())
+                || !index.changeToken.equals(calendarEventCache.getChangeToken(plan.getId()))) {
+            indexes.remove(key);
+            return null;
+        }
+        return index;
+    }
+
+    /**
+     * @return false if the calendar has recently had more events in the horizon than its limit
+     */
+    public synchronized boolean isIndexable(CalendarPlan plan, String userKey) {
+        String key = key(plan.getId(), userKey);
+        Long until = unindexableUntil.get(key);
+        if (until == null)
+            return true;
+        if (until > System.currentTimeMillis())
+            return false;
+        unindexableUntil.remove(key);
+        return true;
+    }
+
+    public synchronized void setUnindexable(CalendarPlan plan, String userKey) {
+        unindexableUntil.put(key(plan.getId(), userKey), System.currentTimeMillis() + EXPIRE_AFTER_MILLIS);
+    }
+
+    /**
+     * @return empty index with the horizon around today, it has to be filled and put
+     */
+    public synchronized Index createIndex(CalendarPlan plan) {
+        LocalDate today = LocalDate.now();
+        return new Index(plan.getId(), plan.getFingerprint(), calendarEventCache.getChangeToken(plan.getId()), getGeneration(plan.getId()), today.minusMonths(HORIZON_MONTHS), today.plusMonths(HORIZON_MONTHS));
+    }
+
+    /**
+     * Drops the index if events of its calendar have changed since {@link #createIndex}, these changes
+     * may be missing in the index and it has no changed issues to search again
+     */
+    public synchronized void put(CalendarPlan plan, String userKey, Index index) {
+        String key = key(plan.getId(), userKey);
+        if (index.generation != getGeneration(plan.getId())) {
+            if (log.isDebugEnabled())
+                log.debug("Event index of calendar {} is dropped as its events have changed while it was built", plan.getId());
+            return;
+        }
+        if (index.size() > pluginSettingsService.getEventIndexSize()) {
+            setUnindexable(plan, userKey);
+            return;
+        }
+        indexes.put(key, index);
+        trim();
+    }
+
+    public synchronized void remove(CalendarPlan plan, String userKey) {
+        indexes.remove(key(plan.getId(), userKey));
+    }
+
+    /**
+     * Evicts least recently used indexes until all of them fit the budget
+     */
+    public synchronized void trim() {
+        int budget = pluginSettingsService.getEventIndexSize();
+        int size = 0;
+        for (Index index : indexes.values())
+            size += index.size();
+        for (Iterator<Index> it = indexes.values().iterator(); size > budget && it.hasNext(); ) {
+            size -= it.next().size();
+            it.remove();
+        }
+    }
+
+    /**
+     * Generations are kept, an index being built now has to see the changes made before
+     */
+    public synchronized void invalidateAll() {
+        indexes.clear();
+        unindexableUntil.clear();
+    }
+
+    @EventListener
+    public void onCalendarEventsChanged(CalendarEventsChangedEvent event) {
+        synchronized (this) {
+            for (Integer calendarId : event.getRanges().keySet())
+                generations.put(calendarId, getGeneration(calendarId) + 1);
+            for (Iterator<Index> it = indexes.values().iterator(); it.hasNext(); ) {
+                Index index = it.next();
+                CalendarEventsChangedEvent.Range range = event.getRanges().get(index.calendarId);
+                if (range == null)
+                    continue;
+                if (event.isIssueDeleted())
+                    index.remove(event.getIssueId());
+                else if ((index.contains(event.getIssueId()) || range.overlaps(index.horizonStart.toDate().getTime(), index.horizonEnd.toDate().getTime()))
+                        && !index.markChanged(event.getIssueId()))
+                    it.remove();
+            }
+        }
+        if (log.isDebugEnabled())
+            log.debug("update event indexes for issueId={}, ranges={}", event.getIssueId(), event.getRanges());
+    }
+
+    private long getGeneration(int calendarId) {
+        Long generation = generations.get(calendarId);
+        return generation != null ? generation : 0;
+    }
+
+    private static String key(int calendarId, String userKey) {
+        return calendarId + "/" + userKey;
+    }
+
+    /**
+     * Events of one calendar visible to one user in the horizon, the interval tree is rebuilt lazily after changes
+     */
+    public static final class Index {
+        private final int calendarId;
+        private final String fingerprint;
+        private final String changeToken;
+        private final long generation;
+        private final LocalDate horizonStart;
+        private final LocalDate horizonEnd;
+        private final long created = System.currentTimeMillis();
+        private final Map<Long, Event> events = new HashMap<Long, Event>();
+        private final Set<Long> changedIssueIds = new HashSet<Long>();
+        // Held from taking changed issues till replacing their events, not by readers of events
+        private final Lock updateLock = new ReentrantLock();
+        private EventIntervalTree tree;
+
+        private Index(int calendarId, String fingerprint, String changeToken, long generation, LocalDate horizonStart, LocalDate horizonEnd) {
+            this.calendarId = calendarId;
+            this.fingerprint = fingerprint;
+            this.changeToken = changeToken;
+            this.generation = generation;
+            this.horizonStart = horizonStart;
+            this.horizonEnd = horizonEnd;
+        }
+
+        public Lock getUpdateLock() {
+            return updateLock;
+        }
+
+        public String getHorizonStart() {
+            return horizonStart.toString("yyyy-MM-dd");
+        }
+
+        public String getHorizonEnd() {
+            return horizonEnd.toString("yyyy-MM-dd");
+        }
+
+        public boolean covers(Date start, Date end) {
+            return !start.before(horizonStart.toDate()) && !end.after(horizonEnd.toDate());
+        }
+
+        public synchronized void add(Event event) {
+            events.put(event.getIssueId(), event);
+            tree = null;
+        }
+
+        /**
+         * The caller has to search these issues again and {@link #replace} their events
+         */
+        public synchronized Set<Long> takeChangedIssueIds() {
+            if (changedIssueIds.isEmpty())
+                return Collections.emptySet();
+            Set<Long> result = new HashSet<Long>(changedIssueIds);
+            changedIssueIds.clear();
+            return result;
+        }
+
+        /**
+         * Replaces events of the issues with the found ones, issues without found events have left the calendar
+         */
+        public synchronized void replace(Set<Long> issueIds, List<Event> foundEvents) {
+            for (Long issueId : issueIds)
+                events.remove(issueId);
+            for (Event event : foundEvents)
+                events.put(event.getIssueId(), event);
+            tree = null;
+        }
+
+        /**
+         * @return events overlapping the window ordered by start
+         */
+        public synchronized List<Event> find(long windowStart, long windowEnd) {
+            if (tree == null)
+                tree = new EventIntervalTree(events.values());
+            return tree.find(windowStart, windowEnd);
+        }
+
+        private synchronized int size() {
+            return events.size();
+        }
+
+        private synchronized boolean contains(long issueId) {
+            return events.containsKey(issueId);
+        }
+
+        private synchronized void remove(long issueId) {
+            if (events.remove(issueId) != null)
+                tree = null;
+            changedIssueIds.remove(issueId);
+        }
+
+        /**
+         * @return false if there are too many changes, it is cheaper to build the index again
+         */
+        private synchronized boolean markChanged(long issueId) {
+            changedIssueIds.add(issueId);
+            return changedIssueIds.size() <= MAX_CHANGED_ISSUES;
+        }
+    }
+}
@@ -11,63 +11,113 @@ import com.atlassian.jira.datetime.DateTimeStyle;
 import com.atlassian.jira.exception.GetException;
 import com.atlassian.jira.issue.CustomFieldManager;
 import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.IssueFactory;
+import com.atlassian.jira.issue.IssueFieldConstants;
 import com.atlassian.jira.issue.IssueInputParameters;
 import com.atlassian.jira.issue.MutableIssue;
 import com.atlassian.jira.issue.RendererManager;
 import com.atlassian.jira.issue.customfields.impl.DateCFType;
 import com.atlassian.jira.issue.customfields.impl.DateTimeCFType;
-import com.atlassian.jira.issue.fields.AssigneeSystemField;
+import com.atlassian.jira.issue.customfields.option.Option;
 import com.atlassian.jira.issue.fields.CustomField;
-import com.atlassian.jira.issue.fields.LabelsSystemField;
-import com.atlassian.jira.issue.fields.ReporterSystemField;
+import com.atlassian.jira.issue.fields.NavigableField;
 import com.atlassian.jira.issue.fields.layout.field.FieldLayoutItem;
 import com.atlassian.jira.issue.fields.layout.field.FieldLayoutManager;
+import com.atlassian.jira.issue.index.DocumentConstants;
+import com.atlassian.jira.issue.label.Label;
 import com.atlassian.jira.issue.search.SearchException;
 import com.atlassian.jira.issue.search.SearchProvider;
 import com.atlassian.jira.issue.search.SearchRequest;
+import com.atlassian.jira.issue.search.SearchResults;
 import com.atlassian.jira.jql.builder.JqlClauseBuilder;
 import com.atlassian.jira.jql.builder.JqlQueryBuilder;
 import com.atlassian.jira.project.version.Version;
 import com.atlassian.jira.user.ApplicationUser;
+import com.atlassian.jira.util.LuceneUtils;
 import com.atlassian.jira.web.bean.PagerFilter;
+import com.atlassian.query.Query;
+import com.atlassian.query.operator.Operator;
+import com.atlassian.query.order.SortOrder;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.jira.plugins.calendar.model.Calendar;
 import ru.mail.jira.plugins.calendar.rest.dto.Event;
+import ru.mail.jira.plugins.calendar.rest.dto.EventsDto;
 import ru.mail.jira.plugins.calendar.rest.dto.IssueInfo;
 import ru.mail.jira.plugins.commons.CommonUtils;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.sql.Timestamp;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class CalendarEventService {
     private final static Logger log = LoggerFactory.getLogger(CalendarEventService.class);
 
     private final static int MILLIS_IN_DAY = 86400000;
+    private final static int PAGE_SIZE = 500;
+    private final static int MAX_EVENT_INFOS = 200;
+    private final static int STREAM_QUEUE_CAPACITY = 100;
+    private final static long STREAM_OFFER_MILLIS = 100;
+    // Marks the end of events in the queue of a stream
+    private final static Event END_OF_EVENTS = new Event();
 
     public static final String CREATED_DATE_KEY = "created";
     public static final String UPDATED_DATE_KEY = "updated";
     public static final String RESOLVED_DATE_KEY = "resolved";
     public static final String DUE_DATE_KEY = "due_date";
 
+    private CalendarEventCache calendarEventCache;
+    private CalendarEventIndex calendarEventIndex;
+    private CalendarSearchExecutor calendarSearchExecutor;
     private CalendarService calendarService;
     private CustomFieldManager customFieldManager;
     private DateTimeFormatter dateTimeFormatter;
     private FieldLayoutManager fieldLayoutManager;
+    private IssueFactory issueFactory;
     private IssueService issueService;
+    private PluginSettingsService pluginSettingsService;
     private RendererManager rendererManager;
     private SearchRequestService searchRequestService;
     private SearchProvider searchProvider;
     private SearchService searchService;
 
+    public void setCalendarEventCache(CalendarEventCache calendarEventCache) {
+        this.calendarEventCache = calendarEventCache;
+    }
+
+    public void setCalendarEventIndex(CalendarEventIndex calendarEventIndex) {
+        this.calendarEventIndex = calendarEventIndex;
+    }
+
+    public void setCalendarSearchExecutor(CalendarSearchExecutor calendarSearchExecutor) {
+        this.calendarSearchExecutor = calendarSearchExecutor;
+    }
+
     public void setCalendarService(CalendarService calendarService) {
         this.calendarService = calendarService;
     }
@@ -84,10 +134,18 @@ public class CalendarEventService {
         this.fieldLayoutManager = fieldLayoutManager;
     }
 
+    public void setIssueFactory(IssueFactory issueFactory) {
+        this.issueFactory = issueFactory;
+    }
+
     public void setIssueService(IssueService issueService) {
         this.issueService = issueService;
     }
 
+    public void setPluginSettingsService(PluginSettingsService pluginSettingsService) {
+        this.pluginSettingsService = pluginSettingsService;
+    }
+
     public void setRendererManager(RendererManager rendererManager) {
         this.rendererManager = rendererManager;
     }
@@ -104,293 +162,557 @@ public class CalendarEventService {
         this.searchService = searchService;
     }
 
-    public List<Event> findEvents(final int calendarId,
-                                  final String start,
-                                  final String end,
-                                  final ApplicationUser user) throws ParseException, SearchException, GetException {
+    public EventsDto findEvents(final int calendarId,
+                                final String start,
+                                final String end,
+                                final ApplicationUser user) throws ParseException, SearchException, GetException {
         return findEvents(calendarId, start, end, user, false);
     }
 
-    public List<Event> findEvents(final int calendarId,
-                                  final String start,
-                                  final String end,
-                                  final ApplicationUser user,
-                                  final boolean includeIssueInfo) throws ParseException, SearchException, GetException {
+    public EventsDto findEvents(final int calendarId,
+                                final String start,
+                                final String end,
+                                final ApplicationUser user,
+                                final boolean includeIssueInfo) throws ParseException, SearchException, GetException {
         if (log.isDebugEnabled())
             log.debug("findEvents with params. calendarId={}, start={}, end={}, user={}, includeIssueInfo={}", new Object[]{calendarId, start, end, user.toString(), includeIssueInfo});
-        Calendar calendarModel = calendarService.getCalendar(calendarId);
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        String source = calendarModel.getSource();
-        if (source.startsWith("project_"))
-            return getProjectEvents(calendarModel, Long.parseLong(source.substring("project_".length())),
-                                    calendarModel.getEventStart(), calendarModel.getEventEnd(), dateFormat.parse(start), dateFormat.parse(end), user, includeIssueInfo);
-        else if (source.startsWith("filter_"))
-            return getFilterEvents(calendarModel, Long.parseLong(source.substring("filter_".length())),
-                                   calendarModel.getEventStart(), calendarModel.getEventEnd(), dateFormat.parse(start), dateFormat.parse(end), user, includeIssueInfo);
-        else if (source.startsWith("jql_"))
-            return getJqlEvents(calendarModel, StringUtils.substringAfter(source, "jql_"),
-                                calendarModel.getEventStart(), calendarModel.getEventEnd(), dateFormat.parse(start), dateFormat.parse(end), user, includeIssueInfo);
-        else {
-            return Collections.emptyList();
-        }
+        return findEvents(getCalendarPlan(calendarId), new SearchContext(start, end, user, includeIssueInfo));
     }
 
-    public IssueInfo getEventInfo(ApplicationUser user, int calendarId, String eventId) throws GetException {
-        Calendar calendar = calendarService.getCalendar(calendarId);
-        IssueService.IssueResult issueResult = issueService.getIssue(user, eventId);
-        MutableIssue issue = issueResult.getIssue();
-        return getEventInfo(calendar, issue);
+    public Map<Integer, EventsDto> findEvents(final List<Integer> calendarIds,
+                                              final String start,
+                                              final String end,
+                                              final ApplicationUser user) throws ParseException {
+        return findEvents(calendarIds, start, end, user, false);
     }
 
-    private List<Event> getProjectEvents(Calendar calendar, long projectId,
-                                         String startField, String endField,
-                                         Date startTime, Date endTime,
-                                         ApplicationUser user, boolean includeIssueInfo) throws SearchException {
-        JqlClauseBuilder jqlBuilder = JqlQueryBuilder.newClauseBuilder();
-        jqlBuilder.project(projectId);
-        return getEvents(calendar, jqlBuilder, startField, endField, startTime, endTime, user, includeIssueInfo);
+    /**
+     * Finds events of several calendars in parallel sharing the user dependent setup between them.
+     * Calendars which can not be loaded or searched are logged and skipped.
+     */
+    public Map<Integer, EventsDto> findEvents(final List<Integer> calendarIds,
+                                              final String start,
+                                              final String end,
+                                              final ApplicationUser user,
+                                              final boolean includeIssueInfo) throws ParseException {
+        if (log.isDebugEnabled())
+            log.debug("findEvents with params. calendarIds={}, start={}, end={}, user={}, includeIssueInfo={}", new Object[]{calendarIds, start, end, user.toString(), includeIssueInfo});
+        Map<Integer, EventsDto> result = new LinkedHashMap<Integer, EventsDto>(calendarIds.size());
+        for (Map.Entry<Integer, Future<EventsDto>> entry : submitSearches(calendarIds, new SearchContext(start, end, user, includeIssueInfo)).entrySet()) {
+            EventsDto events = getSearchResult(entry.getKey(), entry.getValue());
+            if (events != null)
+                result.put(entry.getKey(), events);
+        }
+        return result;
     }
 
-    private List<Event> getFilterEvents(Calendar calendar,
-                                        long filterId,
-                                        String startField,
-                                        String endField,
-                                        Date startTime,
-                                        Date endTime,
-                                        ApplicationUser user, boolean includeIssueInfo) throws SearchException {
-        if (log.isDebugEnabled())
-            log.debug("getFilterEvents with params. calendar={}, filterId={}, startField={}, endField={}, startTime={}, endTime={}, user={}, includeIssueInfo={}",
-                      new Object[]{calendar, filterId, startField, endField, startTime, endTime, user, includeIssueInfo});
-        JiraServiceContext jsCtx = new JiraServiceContextImpl(user);
-        SearchRequest filter = searchRequestService.getFilter(jsCtx, filterId);
+    /**
+     * Searches several calendars in parallel and passes their events to the handler in the calling thread,
+     * calendar by calendar in the given order. Every search hands its events over through a bounded queue as soon as
+     * they are built, so neither a whole calendar nor a whole feed is held in memory and found events are not cached.
+     * Calendars which can not be loaded are logged and skipped, a calendar whose search fails is logged and cut short,
+     * both are reported as failed so that the caller does not take the events for complete.
+     *
+     * @param eventLimit lowers events limits of the calendars, 0 keeps their own limits
+     */
+    public StreamResult findEvents(final List<Integer> calendarIds,
+                                   final String start,
+                                   final String end,
+                                   final ApplicationUser user,
+                                   final boolean includeIssueInfo,
+                                   final int eventLimit,
+                                   final EventHandler handler) throws ParseException, IOException {
+        return findEvents(calendarIds, start, end, user, includeIssueInfo, false, eventLimit, handler);
+    }
 
+    /**
+     * @param plainIssueInfo fills issue infos with plain values of the fields, for clients which show text only
+     */
+    public StreamResult findEvents(final List<Integer> calendarIds,
+                                   final String start,
+                                   final String end,
+                                   final ApplicationUser user,
+                                   final boolean includeIssueInfo,
+                                   final boolean plainIssueInfo,
+                                   final int eventLimit,
+                                   final EventHandler handler) throws ParseException, IOException {
         if (log.isDebugEnabled())
-            log.debug("find filter by id. filter={}", filter);
-        if (filter == null) {
-            log.error("Filter with id => " + filterId + " is null. Maybe it was deleted");
-            return new ArrayList<Event>(0);
+            log.debug("findEvents with params. calendarIds={}, start={}, end={}, user={}, includeIssueInfo={}, plainIssueInfo={}, eventLimit={}, handler={}", new Object[]{calendarIds, start, end, user.toString(), includeIssueInfo, plainIssueInfo, eventLimit, handler});
+        SearchContext searchContext = new SearchContext(start, end, user, includeIssueInfo, plainIssueInfo, eventLimit, null);
+        StreamResult result = new StreamResult();
+        List<EventStream> streams = new ArrayList<EventStream>(calendarIds.size());
+        for (Integer calendarId : new LinkedHashSet<Integer>(calendarIds)) {
+            try {
+                streams.add(new EventStream(calendarId, getCalendarPlan(calendarId), searchContext));
+            } catch (Exception e) {
+                log.error(String.format("Error while trying to find events of calendar => %s", calendarId), e);
+                result.failedCalendarIds.add(calendarId);
+            }
         }
 
-        JqlClauseBuilder jqlBuilder = JqlQueryBuilder.newClauseBuilder(filter.getQuery());
-        return getEvents(calendar, jqlBuilder, startField, endField, startTime, endTime, user, includeIssueInfo);
+        try {
+            for (EventStream stream : streams)
+                stream.start();
+            for (EventStream stream : streams)
+                stream.drainTo(handler, result);
+        } finally {
+            for (EventStream stream : streams)
+                stream.cancel();
+        }
+        return result;
     }
 
-    private List<Event> getJqlEvents(Calendar calendar,
-                                     String jql,
-                                     String startField,
-                                     String endField,
-                                     Date startTime,
-                                     Date endTime,
-                                     ApplicationUser user, boolean includeIssueInfo) throws SearchException {
-        if (log.isDebugEnabled())
-            log.debug("getJqlEvents with params. calendar={}, jql={}, startField={}, endField={}, startTime={}, endTime={}, user={}, includeIssueInfo={}",
-                      new Object[]{calendar, jql, startField, endField, startTime, endTime, user, includeIssueInfo});
-        if (log.isDebugEnabled())
-            log.debug("find filter by jql. jql={}", jql);
-        if (jql == null) {
-            log.error("JQL => {} is null.", jql);
-            return new ArrayList<Event>(0);
+    private Map<Integer, Future<EventsDto>> submitSearches(List<Integer> calendarIds, final SearchContext searchContext) {
+        Map<Integer, Future<EventsDto>> result = new LinkedHashMap<Integer, Future<EventsDto>>(calendarIds.size());
+        for (Integer calendarId : calendarIds) {
+            if (result.containsKey(calendarId))
+                continue;
+            try {
+                final CalendarPlan plan = getCalendarPlan(calendarId);
+                result.put(calendarId, calendarSearchExecutor.submit(searchContext.user, new Callable<EventsDto>() {
+                    @Override
+                    public EventsDto call() throws Exception {
+                        return findEvents(plan, searchContext);
+                    }
+                }));
+            } catch (Exception e) {
+                log.error(String.format("Error while trying to find events of calendar => %s", calendarId), e);
+            }
         }
-        SearchService.ParseResult parseResult = searchService.parseQuery(user, jql);
+        return result;
+    }
 
-        if (parseResult.isValid()) {
-            JqlClauseBuilder jqlBuilder = JqlQueryBuilder.newClauseBuilder(parseResult.getQuery());
-            return getEvents(calendar, jqlBuilder, startField, endField, startTime, endTime, user, includeIssueInfo);
-        } else {
-            log.error("JQL is invalid => {}", jql);
-            return new ArrayList<Event>(0);
+    @Nullable
+    private EventsDto getSearchResult(int calendarId, Future<EventsDto> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            log.error(String.format("Interrupted while waiting for events of calendar => %s", calendarId), e);
+        } catch (ExecutionException e) {
+            log.error(String.format("Error while trying to find events of calendar => %s", calendarId), e.getCause());
         }
+        return null;
     }
 
-    private List<Event> getEvents(Calendar calendar,
-                                  JqlClauseBuilder jqlBuilder,
-                                  String startField,
-                                  String endField,
-                                  Date startTime,
-                                  Date endTime,
-                                  ApplicationUser user, boolean includeIssueInfo) throws SearchException {
-        List<Event> result = new ArrayList<Event>();
+    /**
+     * Passes events to the handler as soon as they are built, so the caller does not have to hold all of them.
+     * Cached events are replayed to the handler, freshly found ones are not cached.
+     *
+     * @return true if the calendar has more events in the window than its limit
+     */
+    public boolean findEvents(final int calendarId,
+                              final String start,
+                              final String end,
+                              final ApplicationUser user,
+                              final EventHandler handler) throws ParseException, SearchException, GetException, IOException {
+        return findEvents(calendarId, start, end, user, false, handler);
+    }
 
-        CustomField startCF = null;
-        if (startField.startsWith("customfield_")) {
-            startCF = customFieldManager.getCustomFieldObject(startField);
-            if (log.isDebugEnabled())
-                log.debug("find customfield for startField. startCF={}", startCF);
-            if (startCF == null)
-                throw new IllegalArgumentException("Bad custom field id => " + startField);
+    public boolean findEvents(final int calendarId,
+                              final String start,
+                              final String end,
+                              final ApplicationUser user,
+                              final boolean includeIssueInfo,
+                              final EventHandler handler) throws ParseException, SearchException, GetException, IOException {
+        if (log.isDebugEnabled())
+            log.debug("findEvents with params. calendarId={}, start={}, end={}, user={}, includeIssueInfo={}, handler={}", new Object[]{calendarId, start, end, user.toString(), includeIssueInfo, handler});
+        return streamEvents(getCalendarPlan(calendarId), new SearchContext(start, end, user, includeIssueInfo), handler);
+    }
+
+    private boolean streamEvents(CalendarPlan plan, SearchContext searchContext, EventHandler handler) throws SearchException, IOException {
+        EventsDto cachedEvents = calendarEventCache.get(getCacheKey(plan, searchContext));
+        if (cachedEvents != null) {
+            for (Event event : cachedEvents.getEvents())
+                handler.handle(event);
+            return cachedEvents.isTruncated();
+        }
+        return findEvents(plan, searchContext, handler);
+    }
+
+    /**
+     * @return compiled plan of the calendar, the calendar entity is loaded only when the plan is not cached
+     */
+    public CalendarPlan getCalendarPlan(int calendarId) throws GetException {
+        CalendarPlan plan = calendarEventCache.getPlan(calendarId);
+        if (plan == null) {
+            plan = new CalendarPlan(calendarService.getCalendar(calendarId), customFieldManager);
+            calendarEventCache.putPlan(plan);
         }
+        return plan;
+    }
 
-        CustomField endCF = null;
-        if (StringUtils.isNotEmpty(endField) && endField.startsWith("customfield_")) {
-            endCF = customFieldManager.getCustomFieldObject(endField);
+    private EventsDto findEvents(final CalendarPlan plan, final SearchContext searchContext) throws SearchException {
+        CalendarEventCache.Key cacheKey = getCacheKey(plan, searchContext);
+        EventsDto result = calendarEventCache.get(cacheKey);
+        if (result != null) {
             if (log.isDebugEnabled())
-                log.debug("find customfield for endField. endCF={}", endCF);
-            if (endCF == null)
-                throw new IllegalArgumentException("Bad custom field id => " + endField);
+                log.debug("found cached events. calendarId={}, events.size()={}", plan.getId(), result.getEvents().size());
+            return result;
         }
-        DateTimeFormatter userDateFormat = dateTimeFormatter.forUser(user).withStyle(DateTimeStyle.ISO_8601_DATE);
-        DateTimeFormatter userDateTimeFormat = dateTimeFormatter.forUser(user).withStyle(DateTimeStyle.ISO_8601_DATE_TIME);
 
-        jqlBuilder.and().sub();
-        addDateCondition(startField, startTime, endTime, jqlBuilder, userDateFormat);
-        if (StringUtils.isNotEmpty(endField)) {
-            jqlBuilder.or();
-            addDateCondition(endField, startTime, endTime, jqlBuilder, userDateFormat);
-            jqlBuilder.or();
-            addStartLessCondition(startField, startTime, jqlBuilder, userDateFormat);
-            jqlBuilder.and();
-            addEndGreaterCondition(endField, endTime, jqlBuilder, userDateFormat);
+        final List<Event> events = new ArrayList<Event>();
+        boolean truncated;
+        try {
+            truncated = findEvents(plan, searchContext, new EventHandler() {
+                @Override
+                public void handle(Event event) {
+                    events.add(event);
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("Collecting events to a list can not fail with IO error", e);
         }
-        jqlBuilder.endsub();
-        boolean dateFieldsIsDraggable = isDateFieldsDraggable(startField, endField);
-        if (log.isDebugEnabled())
-            log.debug("dateFieldsIsDraggable={}", dateFieldsIsDraggable);
+        result = new EventsDto(events, truncated);
+        calendarEventCache.put(cacheKey, result);
+        return result;
+    }
 
-        List<Issue> issues = searchProvider.search(jqlBuilder.buildQuery(), user, PagerFilter.getUnlimitedFilter()).getIssues();
-        if (log.isDebugEnabled())
-            log.debug("searchProvider.search(). query={}, user={}, issues.size()={}", new Object[]{jqlBuilder.buildQuery().toString(), user, issues.size()});
-        for (Issue issue : issues) {
-            try {
-                Date startDate = startCF == null ? retrieveDateByField(issue, startField) : retrieveDateByField(issue, startCF);
+    /**
+     * Answers from the event index of the calendar when it is on and covers the window, otherwise searches
+     */
+    private boolean findEvents(final CalendarPlan plan, final SearchContext searchContext, final EventHandler handler) throws SearchException, IOException {
+        if (!searchContext.includeIssueInfo && calendarEventIndex.isEnabled()) {
+            CalendarEventIndex.Index index = getEventIndex(plan, searchContext);
+            if (index != null) {
+                List<Event> events = index.find(searchContext.startTime.getTime(), searchContext.endTime.getTime());
+                int eventLimit = getEventLimit(plan, searchContext);
+                for (int i = 0; i < events.size() && i < eventLimit; i++)
+                    handler.handle(events.get(i));
                 if (log.isDebugEnabled())
-                    log.debug("Issue startDate={}", startDate);
-                Date endDate = null;
-                if (StringUtils.isNotEmpty(endField))
-                    endDate = endCF == null ? retrieveDateByField(issue, endField) : retrieveDateByField(issue, endCF);
-                if (log.isDebugEnabled())
-                    log.debug("Issue endDate={}", endDate);
+                    log.debug("found indexed events. calendarId={}, events.size()={}", plan.getId(), events.size());
+                return events.size() > eventLimit;
+            }
+        }
+        return searchEvents(plan, searchContext, handler);
+    }
 
-                boolean isAllDay = isAllDayEvent(startCF, endCF, startField, endField);
-                if (log.isDebugEnabled())
-                    log.debug("Issue isAllDay={}", isAllDay);
-
-                Event event = new Event();
-                event.setCalendarId(calendar.getID());
-                event.setId(issue.getKey());
-                event.setTitle(issue.getSummary());
-                event.setColor(calendar.getColor());
-                event.setAllDay(isAllDay);
-
-                if (startDate == null && endDate == null) { // Something unbelievable
-                    log.error("Event " + issue.getKey() + " doesn't contain startDate and endDate");
-                    continue;
+    /**
+     * Builds the index of the calendar for the user or searches issues changed since the last request to it.
+     *
+     * @return null if the window is out of the index horizon or the calendar can not be indexed
+     */
+    @Nullable
+    private CalendarEventIndex.Index getEventIndex(CalendarPlan plan, SearchContext searchContext) throws SearchException, IOException {
+        ApplicationUser user = searchContext.user;
+        CalendarEventIndex.Index index = calendarEventIndex.get(plan, user.getKey());
+        if (index == null) {
+            if (!calendarEventIndex.isIndexable(plan, user.getKey()))
+                return null;
+            index = calendarEventIndex.createIndex(plan);
+            if (!index.covers(searchContext.startTime, searchContext.endTime))
+                return null;
+            final CalendarEventIndex.Index newIndex = index;
+            boolean truncated = searchEvents(plan, getHorizonContext(index, user, null), new EventHandler() {
+                @Override
+                public void handle(Event event) {
+                    newIndex.add(event);
                 }
+            });
+            if (truncated) {
+                calendarEventIndex.setUnindexable(plan, user.getKey());
+                return null;
+            }
+            calendarEventIndex.put(plan, user.getKey(), index);
+            return index;
+        }
 
-                DateTimeFormatter startFormatter = startField.equals(DUE_DATE_KEY) || startCF != null && startCF.getCustomFieldType() instanceof DateCFType ? userDateFormat.withSystemZone() : userDateTimeFormat;
-                DateTimeFormatter endFormatter = endField != null && endField.equals(DUE_DATE_KEY) || endCF != null && endCF.getCustomFieldType() instanceof DateCFType ? userDateFormat.withSystemZone() : userDateTimeFormat;
-                if (startDate != null) {
-                    event.setStart(startFormatter.format(startDate));
-                    if (endDate != null)
-                        if (endField.equals(DUE_DATE_KEY) || endCF != null && endCF.getCustomFieldType() instanceof DateCFType)
-                            event.setEnd(endFormatter.format(new Date(endDate.getTime() + MILLIS_IN_DAY)));
-                        else
-                            event.setEnd(endFormatter.format(endDate));
-                } else
-                    event.setStart(endFormatter.format(endDate));
-
-                event.setStartEditable(dateFieldsIsDraggable && issueService.isEditable(issue, user));
-                event.setDurationEditable(isDateFieldResizable(endField) && startDate != null && endDate != null && issueService.isEditable(issue, user));
-
-                if (includeIssueInfo)
-                    event.setIssueInfo(getEventInfo(calendar, issue));
-
-                result.add(event);
-            } catch (Exception e) {
-                log.error(String.format("Error while trying to translate issue => %s to event", issue.getKey()), e);
+        if (!index.covers(searchContext.startTime, searchContext.endTime))
+            return null;
+        // Other requests to the index wait for the update instead of reading events of the taken issues
+        index.getUpdateLock().lock();
+        try {
+            Set<Long> changedIssueIds = index.takeChangedIssueIds();
+            if (!changedIssueIds.isEmpty()) {
+                final List<Event> foundEvents = new ArrayList<Event>();
+                boolean updated = false;
+                try {
+                    searchEvents(plan, getHorizonContext(index, user, changedIssueIds), new EventHandler() {
+                        @Override
+                        public void handle(Event event) {
+                            foundEvents.add(event);
+                        }
+                    });
+                    index.replace(changedIssueIds, foundEvents);
+                    updated = true;
+                } finally {
+                    // The taken issues are not marked as changed anymore, so the index can not be used without them
+                    if (!updated)
+                        calendarEventIndex.remove(plan, user.getKey());
+                }
+                calendarEventIndex.trim();
+                if (log.isDebugEnabled())
+                    log.debug("updated event index. calendarId={}, changedIssueIds={}, foundEvents.size()={}", new Object[]{plan.getId(), changedIssueIds, foundEvents.size()});
             }
+        } finally {
+            index.getUpdateLock().unlock();
         }
-        return result;
+        return index;
     }
 
-    private IssueInfo getEventInfo(Calendar calendar, Issue issue) {
-        IssueInfo result = new IssueInfo(issue.getKey(), issue.getSummary());
-        result.setStatusColor(issue.getStatusObject().getStatusCategory().getColorName());
+    private SearchContext getHorizonContext(CalendarEventIndex.Index index, ApplicationUser user, @Nullable Collection<Long> issueIds) {
+        try {
+            return new SearchContext(index.getHorizonStart(), index.getHorizonEnd(), user, false, 0, issueIds);
+        } catch (ParseException e) {
+            throw new IllegalStateException("Index horizon is not a date", e);
+        }
+    }
+
+    private boolean searchEvents(final CalendarPlan plan, final SearchContext searchContext, final EventHandler handler) throws SearchException, IOException {
+        Query query = getSourceQuery(plan, searchContext);
+        if (query == null)
+            return false;
+        return getEvents(plan, JqlQueryBuilder.newClauseBuilder(query), searchContext, handler);
+    }
 
-        if (StringUtils.isNotEmpty(calendar.getDisplayedFields()))
-            fillDisplayedFields(result, calendar.getDisplayedFields().split(","), issue);
+    /**
+     * @return query of the calendar source, null if the filter is deleted or the JQL is invalid
+     */
+    @Nullable
+    private Query getSourceQuery(CalendarPlan plan, SearchContext searchContext) {
+        switch (plan.getSourceType()) {
+            case PROJECT:
+                return plan.getProjectQuery();
+            case FILTER:
+                return getFilterQuery(plan, plan.getSourceId(), searchContext);
+            case JQL:
+                return getJqlQuery(plan, plan.getJql(), searchContext);
+        }
+        return null;
+    }
+
+    /**
+     * Validates the events of the calendars in the window without finding them: one search per calendar reads
+     * the number of issues in the window and the latest update time of them. Any change of an issue in the window,
+     * an issue leaving it or a change of a calendar gives another fingerprint.
+     */
+    public String getEventsVersion(List<Integer> calendarIds, String start, String end, ApplicationUser user) throws ParseException, SearchException {
+        SearchContext searchContext = new SearchContext(start, end, user, false);
+        StringBuilder fingerprint = new StringBuilder(start).append('|').append(end);
+        for (Integer calendarId : new LinkedHashSet<Integer>(calendarIds)) {
+            fingerprint.append('|').append(calendarId);
+            CalendarPlan plan;
+            try {
+                plan = getCalendarPlan(calendarId);
+            } catch (GetException e) {
+                continue;
+            }
+            fingerprint.append(':').append(plan.getSource()).append(':').append(plan.getStartField()).append(':').append(plan.getEndField())
+                       .append(':').append(plan.getColor()).append(':').append(plan.getDisplayedFieldsValue());
+            Query sourceQuery = getSourceQuery(plan, searchContext);
+            if (sourceQuery == null)
+                continue;
+
+            JqlQueryBuilder queryBuilder = JqlQueryBuilder.newBuilder(sourceQuery);
+            JqlClauseBuilder jqlBuilder = queryBuilder.where();
+            jqlBuilder.and().sub();
+            addOverlapCondition(plan, searchContext.startTime, searchContext.endTime, jqlBuilder);
+            jqlBuilder.endsub();
+            queryBuilder.orderBy().clear().updatedDate(SortOrder.DESC);
+            SearchResults searchResults = searchProvider.search(queryBuilder.buildQuery(), user, new PagerFilter(1));
+            fingerprint.append(':').append(searchResults.getTotal());
+            for (Issue issue : searchResults.getIssues())
+                if (issue.getUpdated() != null)
+                    fingerprint.append(':').append(issue.getUpdated().getTime());
+        }
+        return fingerprint.toString();
+    }
+
+    private CalendarEventCache.Key getCacheKey(CalendarPlan plan, SearchContext searchContext) {
+        return CalendarEventCache.key(plan, calendarEventCache.getChangeToken(plan.getId()), searchContext.start, searchContext.end, searchContext.user.getKey(), searchContext.includeIssueInfo, searchContext.plainIssueInfo, searchContext.eventLimit);
+    }
+
+    public IssueInfo getEventInfo(ApplicationUser user, int calendarId, String eventId) throws GetException {
+        CalendarPlan plan = getCalendarPlan(calendarId);
+        IssueService.IssueResult issueResult = issueService.getIssue(user, eventId);
+        MutableIssue issue = issueResult.getIssue();
+        return getEventInfo(plan, issue);
+    }
+
+    /**
+     * Finds infos of many events of the calendar with one search, events of issues which the user can not see
+     * or which do not exist are left out.
+     *
+     * @return infos by event ids in the requested order
+     */
+    public Map<String, IssueInfo> getEventInfos(ApplicationUser user, int calendarId, List<String> eventIds) throws GetException, SearchException {
+        if (log.isDebugEnabled())
+            log.debug("getEventInfos with params. calendarId={}, eventIds={}, user={}", new Object[]{calendarId, eventIds, user});
+        Set<String> issueKeys = new LinkedHashSet<String>(eventIds);
+        if (issueKeys.size() > MAX_EVENT_INFOS)
+            throw new IllegalArgumentException(String.format("Can not get infos of more than %d events at once", MAX_EVENT_INFOS));
+        Map<String, IssueInfo> result = new LinkedHashMap<String, IssueInfo>(issueKeys.size());
+        if (issueKeys.isEmpty())
+            return result;
+
+        CalendarPlan plan = getCalendarPlan(calendarId);
+        Query query = JqlQueryBuilder.newClauseBuilder().issue(issueKeys.toArray(new String[issueKeys.size()])).buildQuery();
+        Map<String, IssueInfo> foundInfos = new HashMap<String, IssueInfo>(issueKeys.size());
+        for (Issue issue : searchProvider.search(query, user, new PagerFilter(issueKeys.size())).getIssues())
+            foundInfos.put(issue.getKey(), getEventInfo(plan, issue));
+        for (String issueKey : issueKeys)
+            if (foundInfos.containsKey(issueKey))
+                result.put(issueKey, foundInfos.get(issueKey));
         return result;
     }
 
-    private void addDateCondition(String field, Date startTime, Date endTime, JqlClauseBuilder jcb, DateTimeFormatter dateTimeFormatter) {
-        if (field.equals(DUE_DATE_KEY))
-            jcb.dueBetween(dateTimeFormatter.format(startTime), dateTimeFormatter.format(endTime));
-        else if (field.equals(CREATED_DATE_KEY))
-            jcb.createdBetween(dateTimeFormatter.format(startTime), dateTimeFormatter.format(endTime));
-        else if (field.equals(UPDATED_DATE_KEY))
-            jcb.updatedBetween(dateTimeFormatter.format(startTime), dateTimeFormatter.format(endTime));
-        else if (field.equals(RESOLVED_DATE_KEY))
-            jcb.resolutionDateBetween(dateTimeFormatter.format(startTime), dateTimeFormatter.format(endTime));
-        else if (field.startsWith("customfield_")) {
-            CustomField customField = customFieldManager.getCustomFieldObject(field);
-            if (log.isDebugEnabled())
-                log.debug("add DateRangeCondition for customfield. customField={}, start={}, end={}", new Object[]{customField, startTime, endTime});
-            if (customField == null)
-                throw new IllegalArgumentException("Bad custom field id => " + field);
-            jcb.customField(customField.getIdAsLong()).range(dateTimeFormatter.format(startTime), dateTimeFormatter.format(endTime));
-        } else
-            throw new IllegalArgumentException("Bad field => " + field);
-    }
-
-    private void addStartLessCondition(String startField, Date startTime, JqlClauseBuilder jcb, DateTimeFormatter dateTimeFormatter) {
-        if (startField.equals(DUE_DATE_KEY))
-            jcb.due().ltEq(dateTimeFormatter.format(startTime));
-        else if (startField.equals(CREATED_DATE_KEY))
-            jcb.created().ltEq(dateTimeFormatter.format(startTime));
-        else if (startField.equals(UPDATED_DATE_KEY))
-            jcb.updated().ltEq(dateTimeFormatter.format(startTime));
-        else if (startField.equals(RESOLVED_DATE_KEY))
-            jcb.resolutionDate().ltEq(dateTimeFormatter.format(startTime));
-        else if (startField.startsWith("customfield_")) {
-            CustomField customField = customFieldManager.getCustomFieldObject(startField);
+    @Nullable
+    private Query getFilterQuery(CalendarPlan plan, long filterId, SearchContext searchContext) {
+        if (log.isDebugEnabled())
+            log.debug("getFilterQuery with params. plan={}, filterId={}, searchContext={}", new Object[]{plan, filterId, searchContext});
+        CalendarEventCache.QueryKey queryKey = CalendarEventCache.queryKey(plan, searchContext.user.getKey());
+        Query query = calendarEventCache.getQuery(queryKey);
+        if (query == null) {
+            JiraServiceContext jsCtx = new JiraServiceContextImpl(searchContext.user);
+            SearchRequest filter = searchRequestService.getFilter(jsCtx, filterId);
+
             if (log.isDebugEnabled())
-                log.debug("add DateRangeCondition for customfield. customField={}, start={}", new Object[]{customField, startTime});
-            if (customField == null)
-                throw new IllegalArgumentException("Bad custom field id => " + startField);
-            jcb.customField(customField.getIdAsLong()).ltEq(dateTimeFormatter.format(startTime));
-        } else
-            throw new IllegalArgumentException("Bad field => " + startField);
-    }
-
-    private void addEndGreaterCondition(String endField, Date endTime, JqlClauseBuilder jcb, DateTimeFormatter dateTimeFormatter) {
-        if (endField.equals(DUE_DATE_KEY))
-            jcb.due().gtEq(dateTimeFormatter.format(endTime));
-        else if (endField.equals(CREATED_DATE_KEY))
-            jcb.created().gtEq(dateTimeFormatter.format(endTime));
-        else if (endField.equals(UPDATED_DATE_KEY))
-            jcb.updated().gtEq(dateTimeFormatter.format(endTime));
-        else if (endField.equals(RESOLVED_DATE_KEY))
-            jcb.resolutionDate().gtEq(dateTimeFormatter.format(endTime));
-        else if (endField.startsWith("customfield_")) {
-            CustomField customField = customFieldManager.getCustomFieldObject(endField);
+                log.debug("find filter by id. filter={}", filter);
+            if (filter == null) {
+                log.error("Filter with id => " + filterId + " is null. Maybe it was deleted");
+                return null;
+            }
+            query = filter.getQuery();
+            calendarEventCache.putQuery(queryKey, query);
+        }
+        return query;
+    }
+
+    @Nullable
+    private Query getJqlQuery(CalendarPlan plan, String jql, SearchContext searchContext) {
+        if (log.isDebugEnabled())
+            log.debug("getJqlQuery with params. plan={}, jql={}, searchContext={}", new Object[]{plan, jql, searchContext});
+        if (jql == null) {
+            log.error("JQL => {} is null.", jql);
+            return null;
+        }
+        CalendarEventCache.QueryKey queryKey = CalendarEventCache.queryKey(plan, searchContext.user.getKey());
+        Query query = calendarEventCache.getQuery(queryKey);
+        if (query == null) {
+            SearchService.ParseResult parseResult = searchService.parseQuery(searchContext.user, jql);
+            if (!parseResult.isValid()) {
+                log.error("JQL is invalid => {}", jql);
+                return null;
+            }
+            query = parseResult.getQuery();
+            calendarEventCache.putQuery(queryKey, query);
+        }
+        return query;
+    }
+
+    /**
+     * Reads found issues page by page up to the calendar events limit.
+     * Without issue info the events are built straight from the index documents, see {@link EventCollector}.
+     *
+     * @return true if there are more issues than the limit
+     */
+    private boolean getEvents(CalendarPlan plan, JqlClauseBuilder jqlBuilder, SearchContext searchContext, EventHandler handler) throws SearchException, IOException {
+        ApplicationUser user = searchContext.user;
+
+        jqlBuilder.and().sub();
+        addOverlapCondition(plan, searchContext.startTime, searchContext.endTime, jqlBuilder);
+        jqlBuilder.endsub();
+        if (searchContext.issueIds != null)
+            jqlBuilder.and().issue().inNumbers(searchContext.issueIds);
+
+        Query query = jqlBuilder.buildQuery();
+        int eventLimit = getEventLimit(plan, searchContext);
+        int total;
+        if (!searchContext.includeIssueInfo) {
+            EventCollector collector = new EventCollector(plan, searchContext, eventLimit, handler);
+            searchProvider.search(query, user, collector);
+            total = collector.total;
             if (log.isDebugEnabled())
-                log.debug("add DateRangeCondition for customfield. customField={}, start={}", new Object[]{customField, endTime});
-            if (customField == null)
-                throw new IllegalArgumentException("Bad custom field id => " + endField);
-            jcb.customField(customField.getIdAsLong()).gtEq(dateTimeFormatter.format(endTime));
-        } else
-            throw new IllegalArgumentException("Bad field => " + endField);
-    }
-
-    private boolean isAllDayEvent(@Nullable CustomField startCF, @Nullable CustomField endCF,
-                                  @Nullable String startField, @Nullable String endField) {
-        boolean startFieldForDate;
-        if (startCF != null)
-            startFieldForDate = isDateField(startCF);
-        else if (startField != null)
-            startFieldForDate = startField.equals(DUE_DATE_KEY);
-        else
-            throw new IllegalArgumentException("Event start can not be null");
-
-        boolean endFieldForDate;
-        if (endCF != null) {
-            endFieldForDate = isDateField(endCF);
-        } else if (endField != null) {
-            endFieldForDate = endField.equals(DUE_DATE_KEY);
+                log.debug("searchProvider.search() with collector. query={}, user={}, total={}", new Object[]{query, user, total});
         } else {
-            return startFieldForDate;
+            CustomField startCF = plan.getStartCF();
+            CustomField endCF = plan.getEndCF();
+            String startField = plan.getStartField();
+            String endField = plan.getEndField();
+            boolean debugEnabled = log.isDebugEnabled();
+            // Pages are read with separate searches, so issues need a stable order not to be skipped or repeated
+            Query pagedQuery = JqlQueryBuilder.newBuilder(query).orderBy().clear().issueKey(SortOrder.ASC).buildQuery();
+            int from = 0;
+            do {
+                SearchResults searchResults = searchProvider.search(pagedQuery, user, new PagerFilter(from, Math.min(PAGE_SIZE, eventLimit - from)));
+                List<Issue> issues = searchResults.getIssues();
+                total = searchResults.getTotal();
+                if (debugEnabled)
+                    log.debug("searchProvider.search(). query={}, user={}, from={}, issues.size()={}, total={}", new Object[]{pagedQuery, user, from, issues.size(), total});
+                for (Issue issue : issues) {
+                    Event event;
+                    try {
+                        Date startDate = startCF == null ? retrieveDateByField(issue, startField) : retrieveDateByField(issue, startCF);
+                        Date endDate = null;
+                        if (endField != null)
+                            endDate = endCF == null ? retrieveDateByField(issue, endField) : retrieveDateByField(issue, endCF);
+                        if (debugEnabled)
+                            log.debug("Issue {} startDate={}, endDate={}", new Object[]{issue.getKey(), startDate, endDate});
+
+                        event = buildEvent(plan, issue.getId(), issue.getKey(), issue.getSummary(), startDate, endDate);
+                        if (event == null)
+                            continue;
+                        setEditable(plan, event, startDate, endDate, issue, user);
+                        event.setIssueInfo(getEventInfo(plan, issue, searchContext.plainIssueInfo));
+                    } catch (Exception e) {
+                        log.error(String.format("Error while trying to translate issue => %s to event", issue.getKey()), e);
+                        continue;
+                    }
+                    handler.handle(event);
+                }
+                if (issues.isEmpty())
+                    break;
+                from += issues.size();
+            } while (from < total && from < eventLimit);
         }
 
-        return endFieldForDate && startFieldForDate;
+        if (log.isDebugEnabled() && total > eventLimit)
+            log.debug("Calendar {} has {} events in the window, only {} of them are shown", new Object[]{plan.getId(), total, eventLimit});
+        return total > eventLimit;
+    }
+
+    private int getEventLimit(CalendarPlan plan, SearchContext searchContext) {
+        int eventLimit = pluginSettingsService.getEventLimit(plan);
+        return searchContext.eventLimit > 0 ? Math.min(eventLimit, searchContext.eventLimit) : eventLimit;
+    }
+
+    private IssueInfo getEventInfo(CalendarPlan plan, Issue issue) {
+        return getEventInfo(plan, issue, false);
+    }
+
+    /**
+     * @param plain reads values of the fields as they are without rendering them to html
+     */
+    private IssueInfo getEventInfo(CalendarPlan plan, Issue issue, boolean plain) {
+        IssueInfo result = new IssueInfo(issue.getKey(), issue.getSummary());
+        result.setStatusColor(issue.getStatusObject().getStatusCategory().getColorName());
+
+        fillDisplayedFields(result, plan.getDisplayedFields(), issue, plain);
+        return result;
+    }
+
+    /**
+     * Adds the overlap of events with the window as one normalised predicate on absolute timestamps:
+     * the event starts before the window end and ends after the window start, a missing start or end
+     * is replaced by the other one. The query does not depend on the date format of the user.
+     */
+    private void addOverlapCondition(CalendarPlan plan, Date startTime, Date endTime, JqlClauseBuilder jcb) {
+        String startClause = plan.getStartClause();
+        String endClause = plan.getEndClause();
+        if (endClause == null) {
+            jcb.addDateRangeCondition(startClause, startTime, endTime);
+            return;
+        }
+        jcb.sub();
+        jcb.addDateCondition(startClause, Operator.LESS_THAN_EQUALS, endTime).or();
+        jcb.sub().addEmptyCondition(startClause).and().addDateCondition(endClause, Operator.LESS_THAN_EQUALS, endTime).endsub();
+        jcb.endsub();
+        jcb.and();
+        jcb.sub();
+        jcb.addDateCondition(endClause, Operator.GREATER_THAN_EQUALS, startTime).or();
+        jcb.sub().addEmptyCondition(endClause).and().addDateCondition(startClause, Operator.GREATER_THAN_EQUALS, startTime).endsub();
+        jcb.endsub();
     }
 
     public void dragEvent(ApplicationUser user, Calendar calendar, Issue issue, long millisDelta) throws Exception {
@@ -541,15 +863,51 @@ public class CalendarEventService {
         return (Date) issue.getCustomFieldValue(customField);
     }
 
-    private boolean isDateTimeField(CustomField cf) {
-        return cf.getCustomFieldType() instanceof DateTimeCFType;
+    /**
+     * Builds the event of an issue, everything except the dates and the issue itself is taken from the plan
+     *
+     * @return null if the issue has neither start nor end date
+     */
+    @Nullable
+    private Event buildEvent(CalendarPlan plan, long issueId, String issueKey, String summary, @Nullable Date startDate, @Nullable Date endDate) {
+        if (startDate == null && endDate == null) { // Something unbelievable
+            log.error("Event " + issueKey + " doesn't contain startDate and endDate");
+            return null;
+        }
+        Event event = new Event();
+        event.setCalendarId(plan.getId());
+        event.setId(issueKey);
+        event.setIssueId(issueId);
+        event.setTitle(summary);
+        event.setColor(plan.getColor());
+        event.setAllDay(plan.isAllDay());
+        setEventDates(event, startDate, plan.isStartLocalDate(), endDate, endDate != null && plan.isEndLocalDate());
+        return event;
     }
 
-    private boolean isDateField(CustomField cf) {
-        return !isDateTimeField(cf);
+    /**
+     * Edit permission is asked once per issue and only if the calendar lets to drag or resize the event.
+     * It is not shared between issues of a project and status, as it may be granted to the reporter or the assignee.
+     */
+    private void setEditable(CalendarPlan plan, Event event, @Nullable Date startDate, @Nullable Date endDate, Issue issue, ApplicationUser user) {
+        boolean durationEditable = plan.isEndFieldResizable() && startDate != null && endDate != null;
+        if (!plan.isDateFieldsDraggable() && !durationEditable)
+            return;
+        boolean editable = issueService.isEditable(issue, user);
+        event.setStartEditable(plan.isDateFieldsDraggable() && editable);
+        event.setDurationEditable(durationEditable && editable);
     }
 
-    private boolean isDateFieldResizable(String field) {
+    private void setEventDates(Event event, @Nullable Date startDate, boolean startIsLocalDate, @Nullable Date endDate, boolean endIsLocalDate) {
+        if (startDate != null) {
+            event.setStartTime(startDate.getTime(), startIsLocalDate);
+            if (endDate != null)
+                event.setEndTime(endIsLocalDate ? endDate.getTime() + MILLIS_IN_DAY : endDate.getTime(), endIsLocalDate);
+        } else
+            event.setStartTime(endDate.getTime(), endIsLocalDate);
+    }
+
+    static boolean isDateFieldResizable(String field) {
         return !CREATED_DATE_KEY.equals(field) && !UPDATED_DATE_KEY.equals(field) && !RESOLVED_DATE_KEY.equals(field);
     }
 
@@ -557,7 +915,7 @@ public class CalendarEventService {
         return !isDateFieldResizable(field);
     }
 
-    private boolean isDateFieldsDraggable(String startField, String endField) {
+    static boolean isDateFieldsDraggable(String startField, @Nullable String endField) {
         return isDateFieldResizable(startField) && (isDateFieldResizable(endField) || StringUtils.isEmpty(endField));
     }
 
@@ -565,39 +923,28 @@ public class CalendarEventService {
         return !isDateFieldsDraggable(startField, endField);
     }
 
-    private void fillDisplayedFields(IssueInfo issueInfo, String[] extraFields, Issue issue) {
+    private void fillDisplayedFields(IssueInfo issueInfo, List<String> extraFields, Issue issue, boolean plain) {
         DateTimeFormatter userDateTimeFormatter = dateTimeFormatter.forLoggedInUser();
+        Locale locale = userDateTimeFormatter.getLocale();
         for (String extraField : extraFields) {
             if (extraField.startsWith("customfield_")) {
                 CustomField customField = customFieldManager.getCustomFieldObject(extraField);
-                FieldLayoutItem fieldLayoutItem = fieldLayoutManager.getFieldLayout(issue).getFieldLayoutItem(customField);
                 if (customField != null) {
-                    String columnViewHtml = customField.getColumnViewHtml(fieldLayoutItem, new HashMap<String, Object>(), issue);
+                    String columnViewHtml = plain ? getPlainValue(customField.getValue(issue), userDateTimeFormatter) : getFieldHtml(issue, customField.getId(), locale);
                     if (StringUtils.isNotEmpty(columnViewHtml))
                         issueInfo.addCustomField(customField.getName(), columnViewHtml);
                 }
             } else if (extraField.equals(CalendarServiceImpl.REPORTER)) {
-                if (issue.getReporter() != null) {
-                    FieldLayoutItem reporterLayoutItem = fieldLayoutManager.getFieldLayout(issue).getFieldLayoutItem("reporter");
-
-
-                    String columnViewHtml = ((ReporterSystemField) reporterLayoutItem.getOrderableField()).getColumnViewHtml(reporterLayoutItem, new HashMap(), issue);
-                    issueInfo.setReporter(columnViewHtml);
-                }
+                if (issue.getReporter() != null)
+                    issueInfo.setReporter(plain ? issue.getReporter().getDisplayName() : getFieldHtml(issue, IssueFieldConstants.REPORTER, locale));
             } else if (extraField.equals(CalendarServiceImpl.ASSIGNEE)) {
-                if (issue.getAssignee() != null) {
-                    FieldLayoutItem assigneeLayoutItem = fieldLayoutManager.getFieldLayout(issue).getFieldLayoutItem("assignee");
-                    String columnViewHtml = ((AssigneeSystemField) assigneeLayoutItem.getOrderableField()).getColumnViewHtml(assigneeLayoutItem, new HashMap(), issue);
-                    issueInfo.setAssignee(columnViewHtml);
-                }
+                if (issue.getAssignee() != null)
+                    issueInfo.setAssignee(plain ? issue.getAssignee().getDisplayName() : getFieldHtml(issue, IssueFieldConstants.ASSIGNEE, locale));
             } else if (extraField.equals(CalendarServiceImpl.STATUS))
                 issueInfo.setStatus(issue.getStatusObject().getName());
             else if (extraField.equals(CalendarServiceImpl.LABELS)) {
-                if (issue.getLabels() != null && !issue.getLabels().isEmpty()) {
-                    FieldLayoutItem labelsLayoutItem = fieldLayoutManager.getFieldLayout(issue).getFieldLayoutItem("labels");
-                    String columnViewHtml = ((LabelsSystemField) labelsLayoutItem.getOrderableField()).getColumnViewHtml(labelsLayoutItem, new HashMap(), issue);
-                    issueInfo.setLabels(columnViewHtml);
-                }
+                if (issue.getLabels() != null && !issue.getLabels().isEmpty())
+                    issueInfo.setLabels(plain ? getPlainValue(issue.getLabels(), userDateTimeFormatter) : getFieldHtml(issue, IssueFieldConstants.LABELS, locale));
             } else if (extraField.equals(CalendarServiceImpl.COMPONENTS) && issue.getComponentObjects() != null && !issue.getComponentObjects().isEmpty()) {
                 List<String> components = new ArrayList<String>();
                 for (ProjectComponent pc : issue.getComponentObjects())
@@ -622,11 +969,330 @@ public class CalendarEventService {
             else if (extraField.equals(CalendarServiceImpl.UPDATED))
                 issueInfo.setUpdated(userDateTimeFormatter.format(issue.getUpdated()));
             else if (extraField.equals(CalendarServiceImpl.DESCRIPTION)) {
-                if (StringUtils.isNotEmpty(issue.getDescription())) {
-                    String renderedDescription = rendererManager.getRendererForType("atlassian-wiki-renderer").render(issue.getDescription(), null);
-                    issueInfo.setDescription(renderedDescription);
+                if (StringUtils.isNotEmpty(issue.getDescription()))
+                    issueInfo.setDescription(plain ? issue.getDescription() : getFieldHtml(issue, IssueFieldConstants.DESCRIPTION, locale));
+            }
+        }
+    }
+
+    /**
+     * Joins values of multi value fields, takes names of users, options and other JIRA objects as they are shown
+     */
+    @Nullable
+    private String getPlainValue(@Nullable Object value, DateTimeFormatter userDateTimeFormatter) {
+        if (value == null)
+            return null;
+        if (value instanceof Collection) {
+            List<String> values = new ArrayList<String>();
+            for (Object item : (Collection<?>) value) {
+                String itemValue = getPlainValue(item, userDateTimeFormatter);
+                if (StringUtils.isNotEmpty(itemValue))
+                    values.add(itemValue);
+            }
+            return StringUtils.join(values, ", ");
+        }
+        if (value instanceof Map) // Cascading select keeps its options by level
+            return getPlainValue(((Map<?, ?>) value).values(), userDateTimeFormatter);
+        if (value instanceof ApplicationUser)
+            return ((ApplicationUser) value).getDisplayName();
+        if (value instanceof Label)
+            return ((Label) value).getLabel();
+        if (value instanceof Option)
+            return ((Option) value).getValue();
+        if (value instanceof ProjectComponent)
+            return ((ProjectComponent) value).getName();
+        if (value instanceof Version)
+            return ((Version) value).getName();
+        if (value instanceof Date)
+            return userDateTimeFormatter.format((Date) value);
+        return value.toString();
+    }
+
+    /**
+     * Rendered fields are reused until the issue is updated, so unchanged issues are never rendered again
+     */
+    private String getFieldHtml(Issue issue, String fieldId, Locale locale) {
+        CalendarEventCache.FragmentKey key = CalendarEventCache.fragmentKey(issue.getId(), fieldId, issue.getUpdated(), locale);
+        String html = calendarEventCache.getFragment(key);
+        if (html == null) {
+            html = StringUtils.defaultString(renderFieldHtml(issue, fieldId));
+            calendarEventCache.putFragment(key, html);
+        }
+        return html;
+    }
+
+    @Nullable
+    private String renderFieldHtml(Issue issue, String fieldId) {
+        if (fieldId.equals(IssueFieldConstants.DESCRIPTION))
+            return rendererManager.getRendererForType("atlassian-wiki-renderer").render(issue.getDescription(), null);
+        if (fieldId.startsWith("customfield_")) {
+            CustomField customField = customFieldManager.getCustomFieldObject(fieldId);
+            FieldLayoutItem fieldLayoutItem = fieldLayoutManager.getFieldLayout(issue).getFieldLayoutItem(customField);
+            return customField.getColumnViewHtml(fieldLayoutItem, new HashMap<String, Object>(), issue);
+        }
+        FieldLayoutItem fieldLayoutItem = fieldLayoutManager.getFieldLayout(issue).getFieldLayoutItem(fieldId);
+        return ((NavigableField) fieldLayoutItem.getOrderableField()).getColumnViewHtml(fieldLayoutItem, new HashMap<String, Object>(), issue);
+    }
+
+    /**
+     * Builds events from the stored fields of the found index documents, so issues are not loaded from the database.
+     * Edit rights are checked on an issue made of the same document and only when the date fields are editable at all.
+     * All hits are counted but only the first {@code eventLimit} of them become events.
+     */
+    private final class EventCollector extends Collector {
+        private final CalendarPlan plan;
+        private final SearchContext searchContext;
+        private final int eventLimit;
+        private final EventHandler handler;
+        private final String startIndexField;
+        private final String endIndexField;
+        private final boolean startIsLocalDate;
+        private final boolean endIsLocalDate;
+        private final boolean editableEvents;
+        private final SimpleDateFormat localDateFormat = new SimpleDateFormat("yyyyMMdd");
+
+        private IndexReader reader;
+        private int total;
+
+        private EventCollector(CalendarPlan plan, SearchContext searchContext, int eventLimit, EventHandler handler) {
+            this.plan = plan;
+            this.searchContext = searchContext;
+            this.eventLimit = eventLimit;
+            this.handler = handler;
+            this.startIndexField = plan.getStartIndexField();
+            this.endIndexField = plan.getEndIndexField();
+            this.startIsLocalDate = plan.isStartLocalDate();
+            this.endIsLocalDate = plan.isEndLocalDate();
+            this.editableEvents = plan.isDateFieldsDraggable() || plan.isEndFieldResizable();
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) {
+        }
+
+        @Override
+        public void setNextReader(IndexReader reader, int docBase) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return true;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            if (total++ >= eventLimit)
+                return;
+
+            Document document = reader.document(doc);
+            String issueKey = document.get(DocumentConstants.ISSUE_KEY);
+            Event event;
+            try {
+                Date startDate = retrieveDate(document, startIndexField, startIsLocalDate);
+                Date endDate = endIndexField != null ? retrieveDate(document, endIndexField, endIsLocalDate) : null;
+                event = buildEvent(plan, Long.parseLong(document.get(DocumentConstants.ISSUE_ID)), issueKey, document.get(DocumentConstants.ISSUE_SUMMARY), startDate, endDate);
+                if (event == null)
+                    return;
+                if (editableEvents)
+                    setEditable(plan, event, startDate, endDate, issueFactory.getIssue(document), searchContext.user);
+            } catch (Exception e) {
+                log.error(String.format("Error while trying to translate issue => %s to event", issueKey), e);
+                return;
+            }
+            handler.handle(event);
+        }
+
+        private Date retrieveDate(Document document, String indexField, boolean localDate) throws ParseException {
+            String value = document.get(indexField);
+            if (StringUtils.isEmpty(value))
+                return null;
+            return localDate && value.length() == 8 ? localDateFormat.parse(value) : LuceneUtils.stringToDate(value);
+        }
+    }
+
+    /**
+     * Outcome of streaming events of several calendars
+     */
+    public static final class StreamResult {
+        private final Set<Integer> truncatedCalendarIds = new HashSet<Integer>();
+        private final Set<Integer> failedCalendarIds = new HashSet<Integer>();
+
+        /**
+         * @return ids of calendars which have more events in the window than their limits
+         */
+        public Set<Integer> getTruncatedCalendarIds() {
+            return truncatedCalendarIds;
+        }
+
+        /**
+         * @return ids of calendars which could not be loaded or searched, their events are missing or incomplete
+         */
+        public Set<Integer> getFailedCalendarIds() {
+            return failedCalendarIds;
+        }
+    }
+
+    /**
+     * Events of one calendar searched in the pool and handed over to the calling thread through a bounded queue,
+     * the search waits while the queue is full. A search which does not fit into the pool is run in the calling
+     * thread when its turn comes, as it can not hand over events to a consumer which is not reading yet.
+     * A search is never interrupted, as an interrupt during an index read closes the channel of the index shared by
+     * all users. It is cancelled with a flag checked for every found event instead.
+     */
+    private final class EventStream {
+        private final int calendarId;
+        private final CalendarPlan plan;
+        private final SearchContext searchContext;
+        private final BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(STREAM_QUEUE_CAPACITY);
+        private volatile boolean cancelled;
+        private Future<Boolean> future;
+
+        private EventStream(int calendarId, CalendarPlan plan, SearchContext searchContext) {
+            this.calendarId = calendarId;
+            this.plan = plan;
+            this.searchContext = searchContext;
+        }
+
+        private void start() {
+            future = calendarSearchExecutor.trySubmit(searchContext.user, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    try {
+                        return streamEvents(plan, searchContext, new EventHandler() {
+                            @Override
+                            public void handle(Event event) throws IOException {
+                                if (!offer(event))
+                                    throw new StreamCancelledException(calendarId);
+                            }
+                        });
+                    } finally {
+                        putEnd();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Adds the calendar to truncated ones if it has more events in the window than its limit,
+         * or to failed ones if its search has failed
+         */
+        private void drainTo(EventHandler handler, StreamResult result) throws IOException {
+            boolean truncated;
+            if (future == null) {
+                try {
+                    truncated = streamEvents(plan, searchContext, handler);
+                } catch (SearchException e) {
+                    log.error(String.format("Error while trying to find events of calendar => %s", calendarId), e);
+                    result.failedCalendarIds.add(calendarId);
+                    return;
                 }
+            } else {
+                try {
+                    for (Event event = queue.take(); event != END_OF_EVENTS; event = queue.take())
+                        handler.handle(event);
+                    truncated = future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for events of calendar " + calendarId);
+                } catch (ExecutionException e) {
+                    log.error(String.format("Error while trying to find events of calendar => %s", calendarId), e.getCause());
+                    result.failedCalendarIds.add(calendarId);
+                    return;
+                }
+            }
+            if (truncated)
+                result.truncatedCalendarIds.add(calendarId);
+        }
+
+        /**
+         * Stops the search at its next event if the events are not read to the end
+         */
+        private void cancel() {
+            cancelled = true;
+            if (future != null)
+                future.cancel(false);
+        }
+
+        private void putEnd() {
+            offer(END_OF_EVENTS);
+        }
+
+        /**
+         * Waits while the queue is full
+         *
+         * @return false if the stream is cancelled, nobody reads the queue anymore
+         */
+        private boolean offer(Event event) {
+            try {
+                while (!cancelled)
+                    if (queue.offer(event, STREAM_OFFER_MILLIS, TimeUnit.MILLISECONDS))
+                        return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            return false;
+        }
+    }
+
+    /**
+     * Thrown by handlers of cancelled streams, it ends the search from the collector or the page loop
+     */
+    private static final class StreamCancelledException extends IOException {
+        private StreamCancelledException(int calendarId) {
+            super("Events of calendar " + calendarId + " are not read anymore");
+        }
+    }
+
+    /**
+     * User dependent state of a single events request, shared by all calendars of the request.
+     */
+    private final class SearchContext {
+        private final String start;
+        private final String end;
+        private final Date startTime;
+        private final Date endTime;
+        private final ApplicationUser user;
+        private final boolean includeIssueInfo;
+        private final boolean plainIssueInfo;
+        private final int eventLimit;
+        private final Collection<Long> issueIds;
+
+        private SearchContext(String start, String end, ApplicationUser user, boolean includeIssueInfo) throws ParseException {
+            this(start, end, user, includeIssueInfo, 0);
+        }
+
+        private SearchContext(String start, String end, ApplicationUser user, boolean includeIssueInfo, int eventLimit) throws ParseException {
+            this(start, end, user, includeIssueInfo, eventLimit, null);
+        }
+
+        private SearchContext(String start, String end, ApplicationUser user, boolean includeIssueInfo, int eventLimit,
+                              @Nullable Collection<Long> issueIds) throws ParseException {
+            this(start, end, user, includeIssueInfo, false, eventLimit, issueIds);
+        }
+
+        /**
+         * @param plainIssueInfo fills issue infos with plain values of the fields instead of rendered html
+         * @param eventLimit     lowers events limits of the calendars, 0 keeps their own limits
+         * @param issueIds       restricts the search to these issues, null searches all issues of the calendars
+         */
+        private SearchContext(String start, String end, ApplicationUser user, boolean includeIssueInfo, boolean plainIssueInfo, int eventLimit,
+                              @Nullable Collection<Long> issueIds) throws ParseException {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            this.start = start;
+            this.end = end;
+            this.startTime = dateFormat.parse(start);
+            this.endTime = dateFormat.parse(end);
+            this.user = user;
+            this.includeIssueInfo = includeIssueInfo;
+            this.plainIssueInfo = plainIssueInfo;
+            this.eventLimit = eventLimit;
+            this.issueIds = issueIds;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("start=%s, end=%s, user=%s, includeIssueInfo=%s, plainIssueInfo=%s, eventLimit=%s", start, end, user, includeIssueInfo, plainIssueInfo, eventLimit);
         }
     }
 }
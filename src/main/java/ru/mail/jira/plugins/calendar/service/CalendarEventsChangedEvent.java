@@ -0,0 +1,67 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Published by {@link CalendarIssueListener} when an issue changes. Holds the calendars which may show the issue
+ * and the ranges of dates where their events may have changed, caches drop only the slices overlapping them.
+ */
+public final class CalendarEventsChangedEvent {
+    private final long issueId;
+    private final boolean issueDeleted;
+    private final Map<Integer, Range> ranges;
+
+    public CalendarEventsChangedEvent(long issueId, boolean issueDeleted, Map<Integer, Range> ranges) {
+        this.issueId = issueId;
+        this.issueDeleted = issueDeleted;
+        this.ranges = Collections.unmodifiableMap(ranges);
+    }
+
+    public long getIssueId() {
+        return issueId;
+    }
+
+    public boolean isIssueDeleted() {
+        return issueDeleted;
+    }
+
+    /**
+     * @return affected ranges by calendar ids
+     */
+    public Map<Integer, Range> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * Inclusive range of epoch millis
+     */
+    public static final class Range {
+        public static final Range ALL = new Range(Long.MIN_VALUE, Long.MAX_VALUE);
+
+        private final long start;
+        private final long end;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public boolean overlaps(long start, long end) {
+            return this.start <= end && this.end >= start;
+        }
+
+        @Override
+        public String toString() {
+            return this == ALL ? "all" : start + "-" + end;
+        }
+    }
+}
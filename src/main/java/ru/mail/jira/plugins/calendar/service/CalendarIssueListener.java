@@ -0,0 +1,231 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.cache.CacheManager;
+import com.atlassian.cache.CacheSettingsBuilder;
+import com.atlassian.cache.CachedReference;
+import com.atlassian.cache.Supplier;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.jira.event.issue.IssueEvent;
+import com.atlassian.jira.event.type.EventType;
+import com.atlassian.jira.issue.CustomFieldManager;
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.fields.CustomField;
+import org.apache.commons.lang3.StringUtils;
+import org.ofbiz.core.entity.GenericEntityException;
+import org.ofbiz.core.entity.GenericValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import ru.mail.jira.plugins.calendar.model.Calendar;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps changed issues to the calendars whose source may include them and publishes {@link CalendarEventsChangedEvent}.
+ * Project calendars are affected by issues of their project only (before and after a move), filter and JQL calendars
+ * by any issue. The affected range is made of the current dates of the issue, as the issue appears, changes or
+ * disappears only there. When a date field of the calendar has changed its old value is unknown, so the whole
+ * calendar is affected. Sources and date fields of all calendars are kept in a cache dropped on calendar changes.
+ */
+public class CalendarIssueListener implements InitializingBean, DisposableBean {
+    private final static Logger log = LoggerFactory.getLogger(CalendarIssueListener.class);
+
+    // Dates of date-only fields are compared with windows in other time zones
+    private final static long MILLIS_IN_DAY = 24 * 60 * 60 * 1000L;
+    private final static String CACHE_NAME = CalendarIssueListener.class.getName() + ".sources";
+    private final static int EXPIRE_AFTER_WRITE_MINUTES = 30;
+
+    private final CustomFieldManager customFieldManager;
+    private final EventPublisher eventPublisher;
+    private final CachedReference<Sources> sources;
+
+    public CalendarIssueListener(final ActiveObjects ao, CacheManager cacheManager, CustomFieldManager customFieldManager, EventPublisher eventPublisher) {
+        this.customFieldManager = customFieldManager;
+        this.eventPublisher = eventPublisher;
+        this.sources = cacheManager.getCachedReference(CACHE_NAME, new Supplier<Sources>() {
+            @Override
+            public Sources get() {
+                Sources result = new Sources();
+                Calendar[] calendars = ao.find(Calendar.class);
+                for (Calendar calendar : calendars)
+                    result.add(calendar.getID(), calendar.getSource(), calendar.getEventStart(), calendar.getEventEnd());
+                if (log.isDebugEnabled())
+                    log.debug("Calendar sources are read from {} calendars", calendars.length);
+                return result;
+            }
+        }, new CacheSettingsBuilder().remote()
+                                     .replicateViaInvalidation()
+                                     .expireAfterWrite(EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                                     .build());
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        eventPublisher.unregister(this);
+        sources.reset();
+    }
+
+    /**
+     * Has to be called once a created, updated or deleted calendar is committed
+     */
+    public void invalidate() {
+        sources.reset();
+    }
+
+    @EventListener
+    public void onIssueEvent(IssueEvent issueEvent) {
+        Issue issue = issueEvent.getIssue();
+        if (issue == null)
+            return;
+        boolean created = EventType.ISSUE_CREATED_ID.equals(issueEvent.getEventTypeId());
+        boolean deleted = EventType.ISSUE_DELETED_ID.equals(issueEvent.getEventTypeId());
+        Set<String> changedFields = new HashSet<String>();
+        Set<String> projectSources = new HashSet<String>();
+        projectSources.add("project_" + issue.getProjectId());
+        readChangeLog(issueEvent.getChangeLog(), changedFields, projectSources);
+
+        Map<Integer, CalendarEventsChangedEvent.Range> ranges = new HashMap<Integer, CalendarEventsChangedEvent.Range>();
+        for (CalendarSource calendar : sources.get().getCalendars(projectSources)) {
+            try {
+                CalendarEventsChangedEvent.Range range = getRange(issue, calendar.eventStart, calendar.eventEnd, changedFields, created);
+                if (range != null)
+                    ranges.put(calendar.id, range);
+            } catch (Exception e) {
+                log.error(String.format("Error while trying to get changed events of calendar => %s", calendar.id), e);
+                ranges.put(calendar.id, CalendarEventsChangedEvent.Range.ALL);
+            }
+        }
+        if (log.isDebugEnabled())
+            log.debug("issue={}, eventTypeId={}, changed calendar ranges={}", new Object[]{issue.getKey(), issueEvent.getEventTypeId(), ranges});
+        if (!ranges.isEmpty())
+            eventPublisher.publish(new CalendarEventsChangedEvent(issue.getId(), deleted, ranges));
+    }
+
+    /**
+     * Collects names of the changed fields and the source of the project the issue was moved from
+     */
+    private void readChangeLog(@Nullable GenericValue changeLog, Set<String> changedFields, Set<String> projectSources) {
+        if (changeLog == null)
+            return;
+        try {
+            List<GenericValue> changeItems = changeLog.getRelated("ChildChangeItem");
+            for (GenericValue changeItem : changeItems) {
+                String field = changeItem.getString("field");
+                if (field == null)
+                    continue;
+                changedFields.add(field.toLowerCase());
+                if ("project".equalsIgnoreCase(field) && StringUtils.isNotEmpty(changeItem.getString("oldvalue")))
+                    projectSources.add("project_" + changeItem.getString("oldvalue"));
+            }
+        } catch (GenericEntityException e) {
+            log.error("Error while trying to read change log of issue event", e);
+        }
+    }
+
+    /**
+     * @return null if the calendar can not show the issue neither before nor after the change
+     */
+    @Nullable
+    private CalendarEventsChangedEvent.Range getRange(Issue issue, String startField, @Nullable String endField, Set<String> changedFields, boolean created) {
+        if (isChanged(startField, changedFields, created) || StringUtils.isNotEmpty(endField) && isChanged(endField, changedFields, created))
+            return CalendarEventsChangedEvent.Range.ALL;
+        Date startDate = getDate(issue, startField);
+        Date endDate = StringUtils.isNotEmpty(endField) ? getDate(issue, endField) : null;
+        if (startDate == null && endDate == null)
+            return null;
+        long start = startDate != null ? startDate.getTime() : endDate.getTime();
+        long end = endDate != null ? endDate.getTime() : startDate.getTime();
+        return new CalendarEventsChangedEvent.Range(Math.min(start, end) - MILLIS_IN_DAY, Math.max(start, end) + MILLIS_IN_DAY);
+    }
+
+    private boolean isChanged(String field, Set<String> changedFields, boolean created) {
+        if (field.equals(CalendarEventService.UPDATED_DATE_KEY))
+            return !created;
+        if (field.equals(CalendarEventService.CREATED_DATE_KEY))
+            return false;
+        if (field.equals(CalendarEventService.DUE_DATE_KEY))
+            return changedFields.contains("duedate");
+        if (field.equals(CalendarEventService.RESOLVED_DATE_KEY))
+            return changedFields.contains("resolution");
+        CustomField customField = customFieldManager.getCustomFieldObject(field);
+        return customField == null || changedFields.contains(customField.getName().toLowerCase());
+    }
+
+    @Nullable
+    private Date getDate(Issue issue, String field) {
+        if (field.equals(CalendarEventService.DUE_DATE_KEY))
+            return issue.getDueDate();
+        if (field.equals(CalendarEventService.CREATED_DATE_KEY))
+            return issue.getCreated();
+        if (field.equals(CalendarEventService.UPDATED_DATE_KEY))
+            return issue.getUpdated();
+        if (field.equals(CalendarEventService.RESOLVED_DATE_KEY))
+            return issue.getResolutionDate();
+        CustomField customField = customFieldManager.getCustomFieldObject(field);
+        Object value = customField != null ? issue.getCustomFieldValue(customField) : null;
+        return value instanceof Date ? (Date) value : null;
+    }
+
+    /**
+     * Calendars by the project source, filter and JQL calendars apart as they may show issues of any project
+     */
+    private static final class Sources implements Serializable {
+        private final Map<String, List<CalendarSource>> projectCalendars = new HashMap<String, List<CalendarSource>>();
+        private final List<CalendarSource> otherCalendars = new ArrayList<CalendarSource>();
+
+        private void add(int id, String source, String eventStart, String eventEnd) {
+            if (source == null)
+                return;
+            CalendarSource calendar = new CalendarSource(id, eventStart, eventEnd);
+            if (source.startsWith("project_")) {
+                List<CalendarSource> calendars = projectCalendars.get(source);
+                if (calendars == null) {
+                    calendars = new ArrayList<CalendarSource>();
+                    projectCalendars.put(source, calendars);
+                }
+                calendars.add(calendar);
+            } else
+                otherCalendars.add(calendar);
+        }
+
+        private List<CalendarSource> getCalendars(Set<String> projectSources) {
+            List<CalendarSource> result = new ArrayList<CalendarSource>(otherCalendars);
+            for (String projectSource : projectSources) {
+                List<CalendarSource> calendars = projectCalendars.get(projectSource);
+                if (calendars != null)
+                    result.addAll(calendars);
+            }
+            return Collections.unmodifiableList(result);
+        }
+    }
+
+    private static final class CalendarSource implements Serializable {
+        private final int id;
+        private final String eventStart;
+        private final String eventEnd;
+
+        private CalendarSource(int id, String eventStart, String eventEnd) {
+            this.id = id;
+            this.eventStart = eventStart;
+            this.eventEnd = eventEnd;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.cache.CacheManager;
+import com.atlassian.cache.CacheSettingsBuilder;
+import com.atlassian.cache.CachedReference;
+import com.atlassian.cache.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.jira.plugins.calendar.model.Permission;
+import ru.mail.jira.plugins.calendar.model.PermissionType;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps permission subjects to the calendars they can use or administer. The index is built lazily from all
+ * {@link Permission} entities and is dropped on every node of the cluster when permissions change.
+ */
+public class CalendarPermissionIndex {
+    private final static Logger log = LoggerFactory.getLogger(CalendarPermissionIndex.class);
+
+    private final static String CACHE_NAME = CalendarPermissionIndex.class.getName() + ".index";
+    private final static int EXPIRE_AFTER_WRITE_MINUTES = 30;
+
+    private final CachedReference<Index> index;
+
+    public CalendarPermissionIndex(final ActiveObjects ao, CacheManager cacheManager) {
+        this.index = cacheManager.getCachedReference(CACHE_NAME, new Supplier<Index>() {
+            @Override
+            public Index get() {
+                Index result = new Index();
+                Permission[] permissions = ao.find(Permission.class);
+                for (Permission permission : permissions)
+                    result.add(permission.getPermissionType(), permission.getPermissionValue(), permission.getCalendar().getID(), permission.isAdmin());
+                if (log.isDebugEnabled())
+                    log.debug("Calendar permission index is built from {} permissions", permissions.length);
+                return result;
+            }
+        }, new CacheSettingsBuilder().remote()
+                                     .replicateViaInvalidation()
+                                     .expireAfterWrite(EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                                     .build());
+    }
+
+    public Set<Integer> getCalendarIds(PermissionType permissionType, String subject, boolean admin) {
+        return index.get().getCalendarIds(permissionType, subject, admin);
+    }
+
+    /**
+     * @return project role subjects of all permissions, they can not be resolved to a user without JIRA lookups
+     */
+    public Set<String> getProjectRoleSubjects() {
+        return Collections.unmodifiableSet(index.get().projectRoleSubjects);
+    }
+
+    /**
+     * Has to be called once the transaction changing permissions is committed, otherwise a concurrent request
+     * may build the index from the old permissions again, see {@link AfterCommitProcessor}
+     */
+    public void invalidate() {
+        index.reset();
+    }
+
+    private static final class Index implements Serializable {
+        private final Map<String, Set<Integer>> useCalendars = new HashMap<String, Set<Integer>>();
+        private final Map<String, Set<Integer>> adminCalendars = new HashMap<String, Set<Integer>>();
+        private final Set<String> projectRoleSubjects = new HashSet<String>();
+
+        private void add(PermissionType permissionType, String subject, int calendarId, boolean admin) {
+            if (permissionType == null || subject == null)
+                return;
+            String key = key(permissionType, subject);
+            put(useCalendars, key, calendarId);
+            if (admin)
+                put(adminCalendars, key, calendarId);
+            if (permissionType == PermissionType.PROJECT_ROLE)
+                projectRoleSubjects.add(subject);
+        }
+
+        private Set<Integer> getCalendarIds(PermissionType permissionType, String subject, boolean admin) {
+            Set<Integer> result = (admin ? adminCalendars : useCalendars).get(key(permissionType, subject));
+            return result != null ? Collections.unmodifiableSet(result) : Collections.<Integer>emptySet();
+        }
+
+        private static void put(Map<String, Set<Integer>> calendars, String key, int calendarId) {
+            Set<Integer> calendarIds = calendars.get(key);
+            if (calendarIds == null) {
+                calendarIds = new HashSet<Integer>();
+                calendars.put(key, calendarIds);
+            }
+            calendarIds.add(calendarId);
+        }
+
+        private static String key(PermissionType permissionType, String subject) {
+            return permissionType + ":" + (permissionType == PermissionType.GROUP ? subject.toLowerCase() : subject);
+        }
+    }
+}
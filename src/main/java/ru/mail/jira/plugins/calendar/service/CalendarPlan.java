@@ -0,0 +1,265 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import com.atlassian.jira.issue.CustomFieldManager;
+import com.atlassian.jira.issue.customfields.impl.DateCFType;
+import com.atlassian.jira.issue.customfields.impl.DateTimeCFType;
+import com.atlassian.jira.issue.fields.CustomField;
+import com.atlassian.jira.issue.index.DocumentConstants;
+import com.atlassian.jira.issue.search.constants.SystemSearchConstants;
+import com.atlassian.jira.jql.builder.JqlQueryBuilder;
+import com.atlassian.query.Query;
+import org.apache.commons.lang3.StringUtils;
+import ru.mail.jira.plugins.calendar.model.Calendar;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable search plan of a calendar compiled from its definition: the parsed source, the resolved date fields with
+ * their index fields, JQL clauses and types, and the drag and resize capabilities. Plans are kept in
+ * {@link CalendarEventCache} and compiled again after the calendar is updated, so finding events does not load
+ * the calendar entity and extracts events from issues without any per-issue decisions.
+ */
+public final class CalendarPlan {
+    public enum SourceType {
+        PROJECT, FILTER, JQL
+    }
+
+    private final int id;
+    private final String color;
+    private final String source;
+    private final SourceType sourceType;
+    private final long sourceId;
+    private final String jql;
+    private final Query projectQuery;
+    private final String startField;
+    private final String endField;
+    private final CustomField startCF;
+    private final CustomField endCF;
+    private final String startIndexField;
+    private final String endIndexField;
+    private final String startClause;
+    private final String endClause;
+    private final boolean startIsLocalDate;
+    private final boolean endIsLocalDate;
+    private final boolean allDay;
+    private final boolean dateFieldsDraggable;
+    private final boolean endFieldResizable;
+    private final int eventLimit;
+    private final String displayedFieldsValue;
+    private final List<String> displayedFields;
+
+    public CalendarPlan(Calendar calendar, CustomFieldManager customFieldManager) {
+        this.id = calendar.getID();
+        this.color = calendar.getColor();
+        this.source = calendar.getSource();
+        if (source.startsWith("project_")) {
+            this.sourceType = SourceType.PROJECT;
+            this.sourceId = Long.parseLong(source.substring("project_".length()));
+            this.jql = null;
+            this.projectQuery = JqlQueryBuilder.newClauseBuilder().project(sourceId).buildQuery();
+        } else if (source.startsWith("filter_")) {
+            this.sourceType = SourceType.FILTER;
+            this.sourceId = Long.parseLong(source.substring("filter_".length()));
+            this.jql = null;
+            this.projectQuery = null;
+        } else if (source.startsWith("jql_")) {
+            this.sourceType = SourceType.JQL;
+            this.sourceId = 0;
+            this.jql = StringUtils.substringAfter(source, "jql_");
+            this.projectQuery = null;
+        } else
+            throw new IllegalArgumentException("Bad source => " + source);
+
+        this.startField = calendar.getEventStart();
+        this.endField = StringUtils.isNotEmpty(calendar.getEventEnd()) ? calendar.getEventEnd() : null;
+        this.startCF = getCustomField(startField, customFieldManager);
+        this.endCF = endField != null ? getCustomField(endField, customFieldManager) : null;
+        this.startIndexField = getIndexField(startField, startCF);
+        this.endIndexField = endField != null ? getIndexField(endField, endCF) : null;
+        this.startClause = getClauseName(startField, startCF);
+        this.endClause = endField != null ? getClauseName(endField, endCF) : null;
+        this.startIsLocalDate = isLocalDateField(startField, startCF);
+        this.endIsLocalDate = endField != null && isLocalDateField(endField, endCF);
+        this.allDay = isAllDayField(startField, startCF) && (endField == null || isAllDayField(endField, endCF));
+        this.dateFieldsDraggable = CalendarEventService.isDateFieldsDraggable(startField, endField);
+        this.endFieldResizable = endField != null && CalendarEventService.isDateFieldResizable(endField);
+        this.eventLimit = calendar.getEventLimit();
+        this.displayedFieldsValue = calendar.getDisplayedFields();
+        this.displayedFields = StringUtils.isNotEmpty(displayedFieldsValue)
+                ? Collections.unmodifiableList(Arrays.asList(displayedFieldsValue.split(",")))
+                : Collections.<String>emptyList();
+    }
+
+    @Nullable
+    private static CustomField getCustomField(String field, CustomFieldManager customFieldManager) {
+        if (!field.startsWith("customfield_"))
+            return null;
+        CustomField customField = customFieldManager.getCustomFieldObject(field);
+        if (customField == null)
+            throw new IllegalArgumentException("Bad custom field id => " + field);
+        return customField;
+    }
+
+    private static String getIndexField(String field, @Nullable CustomField customField) {
+        if (customField != null)
+            return customField.getId();
+        if (field.equals(CalendarEventService.DUE_DATE_KEY))
+            return DocumentConstants.ISSUE_DUEDATE;
+        if (field.equals(CalendarEventService.CREATED_DATE_KEY))
+            return DocumentConstants.ISSUE_CREATED;
+        if (field.equals(CalendarEventService.UPDATED_DATE_KEY))
+            return DocumentConstants.ISSUE_UPDATED;
+        if (field.equals(CalendarEventService.RESOLVED_DATE_KEY))
+            return DocumentConstants.ISSUE_RESOLUTION_DATE;
+        throw new IllegalArgumentException("Bad field => " + field);
+    }
+
+    private static String getClauseName(String field, @Nullable CustomField customField) {
+        if (customField != null)
+            return customField.getClauseNames().getPrimaryName();
+        if (field.equals(CalendarEventService.DUE_DATE_KEY))
+            return SystemSearchConstants.forDueDate().getJqlClauseNames().getPrimaryName();
+        if (field.equals(CalendarEventService.CREATED_DATE_KEY))
+            return SystemSearchConstants.forCreatedDate().getJqlClauseNames().getPrimaryName();
+        if (field.equals(CalendarEventService.UPDATED_DATE_KEY))
+            return SystemSearchConstants.forUpdatedDate().getJqlClauseNames().getPrimaryName();
+        if (field.equals(CalendarEventService.RESOLVED_DATE_KEY))
+            return SystemSearchConstants.forResolutionDate().getJqlClauseNames().getPrimaryName();
+        throw new IllegalArgumentException("Bad field => " + field);
+    }
+
+    /**
+     * Date custom fields and the due date are indexed and stored as dates without time
+     */
+    private static boolean isLocalDateField(String field, @Nullable CustomField customField) {
+        return customField != null ? customField.getCustomFieldType() instanceof DateCFType : field.equals(CalendarEventService.DUE_DATE_KEY);
+    }
+
+    /**
+     * Events are shown as all day ones unless a date field holds time
+     */
+    private static boolean isAllDayField(String field, @Nullable CustomField customField) {
+        return customField != null ? !(customField.getCustomFieldType() instanceof DateTimeCFType) : field.equals(CalendarEventService.DUE_DATE_KEY);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getColor() {
+        return color;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public SourceType getSourceType() {
+        return sourceType;
+    }
+
+    /**
+     * @return id of the project or of the filter
+     */
+    public long getSourceId() {
+        return sourceId;
+    }
+
+    public String getJql() {
+        return jql;
+    }
+
+    /**
+     * @return query of project calendars, queries of filters and JQL depend on the user
+     */
+    public Query getProjectQuery() {
+        return projectQuery;
+    }
+
+    public String getStartField() {
+        return startField;
+    }
+
+    @Nullable
+    public String getEndField() {
+        return endField;
+    }
+
+    @Nullable
+    public CustomField getStartCF() {
+        return startCF;
+    }
+
+    @Nullable
+    public CustomField getEndCF() {
+        return endCF;
+    }
+
+    public String getStartIndexField() {
+        return startIndexField;
+    }
+
+    @Nullable
+    public String getEndIndexField() {
+        return endIndexField;
+    }
+
+    public String getStartClause() {
+        return startClause;
+    }
+
+    @Nullable
+    public String getEndClause() {
+        return endClause;
+    }
+
+    public boolean isStartLocalDate() {
+        return startIsLocalDate;
+    }
+
+    public boolean isEndLocalDate() {
+        return endIsLocalDate;
+    }
+
+    public boolean isAllDay() {
+        return allDay;
+    }
+
+    public boolean isDateFieldsDraggable() {
+        return dateFieldsDraggable;
+    }
+
+    public boolean isEndFieldResizable() {
+        return endFieldResizable;
+    }
+
+    /**
+     * @return own events limit of the calendar, 0 - plugin default
+     */
+    public int getEventLimit() {
+        return eventLimit;
+    }
+
+    public String getDisplayedFieldsValue() {
+        return displayedFieldsValue;
+    }
+
+    public List<String> getDisplayedFields() {
+        return displayedFields;
+    }
+
+    /**
+     * @return settings the found events depend on, displayed fields are left out as they matter for issue info only
+     */
+    public String getFingerprint() {
+        return source + "|" + startField + "|" + endField + "|" + color + "|" + eventLimit;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CalendarPlan{id=%s, source=%s, startField=%s, endField=%s}", id, source, startField, endField);
+    }
+}
@@ -0,0 +1,112 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import com.atlassian.jira.security.JiraAuthenticationContext;
+import com.atlassian.jira.user.ApplicationUser;
+import com.atlassian.jira.util.thread.JiraThreadLocalUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool running calendar searches in parallel. Tasks are run on behalf of the given user,
+ * tasks which do not fit into the queue are run in the calling thread.
+ */
+public class CalendarSearchExecutor implements DisposableBean {
+    private final static Logger log = LoggerFactory.getLogger(CalendarSearchExecutor.class);
+
+    private final static int QUEUE_CAPACITY = 100;
+    private final static int KEEP_ALIVE_SECONDS = 60;
+
+    private final JiraAuthenticationContext jiraAuthenticationContext;
+    private final JiraThreadLocalUtil jiraThreadLocalUtil;
+    private final PluginSettingsService pluginSettingsService;
+    private final ThreadPoolExecutor executor;
+
+    public CalendarSearchExecutor(JiraAuthenticationContext jiraAuthenticationContext, JiraThreadLocalUtil jiraThreadLocalUtil, PluginSettingsService pluginSettingsService) {
+        this.jiraAuthenticationContext = jiraAuthenticationContext;
+        this.jiraThreadLocalUtil = jiraThreadLocalUtil;
+        this.pluginSettingsService = pluginSettingsService;
+
+        int threads = pluginSettingsService.getSearchThreads();
+        this.executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mailrucal-search-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        // Interrupting a search may close channels of the shared JIRA index, so running searches are let finish
+        executor.shutdown();
+    }
+
+    public <T> Future<T> submit(final ApplicationUser user, final Callable<T> task) {
+        Future<T> result = trySubmit(user, task);
+        if (result != null)
+            return result;
+        if (log.isDebugEnabled())
+            log.debug("Search queue is full, running the task in the calling thread");
+        FutureTask<T> future = new FutureTask<T>(task);
+        future.run();
+        return future;
+    }
+
+    /**
+     * @return null if the task does not fit into the queue, the caller has to run it itself
+     */
+    @Nullable
+    public <T> Future<T> trySubmit(final ApplicationUser user, final Callable<T> task) {
+        updatePoolSize();
+        try {
+            return executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    jiraThreadLocalUtil.preCall();
+                    try {
+                        jiraAuthenticationContext.setLoggedInUser(user);
+                        return task.call();
+                    } finally {
+                        jiraAuthenticationContext.setLoggedInUser((ApplicationUser) null);
+                        jiraThreadLocalUtil.postCall(log);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    private void updatePoolSize() {
+        int threads = pluginSettingsService.getSearchThreads();
+        if (threads == executor.getMaximumPoolSize())
+            return;
+        synchronized (executor) {
+            if (threads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(threads);
+                executor.setCorePoolSize(threads);
+            } else if (threads < executor.getMaximumPoolSize()) {
+                executor.setCorePoolSize(threads);
+                executor.setMaximumPoolSize(threads);
+            }
+        }
+    }
+}
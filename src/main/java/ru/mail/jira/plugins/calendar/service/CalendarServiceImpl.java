@@ -21,6 +21,7 @@ import com.atlassian.jira.user.ApplicationUser;
 import com.atlassian.jira.user.util.UserManager;
 import com.atlassian.jira.util.I18nHelper;
 import com.atlassian.jira.util.MessageSet;
+import net.java.ao.Query;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,7 +37,10 @@ import ru.mail.jira.plugins.commons.RestFieldException;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.regex.Pattern;
@@ -45,6 +49,8 @@ public class CalendarServiceImpl implements CalendarService {
     private final static Logger log = LoggerFactory.getLogger(CalendarServiceImpl.class);
 
     private final static Pattern COLOR_PATTERN = Pattern.compile("^#([A-Fa-f0-9]{6}|[A-Fa-f0-9]{3})$");
+    // Databases limit the number of parameters of one statement
+    private final static int MAX_IN_PARAMETERS = 500;
 
     public static final String DESCRIPTION = "common.words.description";
     public static final String STATUS = "common.words.status";
@@ -81,6 +87,7 @@ public class CalendarServiceImpl implements CalendarService {
     private GroupManager groupManager;
     private PermissionManager permissionManager;
     private PermissionService permissionService;
+    private PluginSettingsService pluginSettingsService;
     private ProjectManager projectManager;
     private ProjectRoleManager projectRoleManager;
     private SearchRequestService searchRequestService;
@@ -109,6 +116,10 @@ public class CalendarServiceImpl implements CalendarService {
         this.permissionService = permissionService;
     }
 
+    public void setPluginSettingsService(PluginSettingsService pluginSettingsService) {
+        this.pluginSettingsService = pluginSettingsService;
+    }
+
     public void setProjectManager(ProjectManager projectManager) {
         this.projectManager = projectManager;
     }
@@ -155,6 +166,8 @@ public class CalendarServiceImpl implements CalendarService {
         result.setSelectedColor(calendar.getColor());
         result.setSelectedEventStartId(calendar.getEventStart());
         result.setSelectedEventEndId(calendar.getEventEnd());
+        if (calendar.getEventLimit() > 0)
+            result.setSelectedEventLimit(calendar.getEventLimit());
 
         if (StringUtils.isNotEmpty(calendar.getDisplayedFields()))
             result.setSelectedDisplayedFields(Arrays.asList(calendar.getDisplayedFields().split(",")));
@@ -206,7 +219,23 @@ public class CalendarServiceImpl implements CalendarService {
     }
 
     public CalendarDto[] getAllCalendars(final ApplicationUser user) {
-        return fillUserCalendarDtos(user, ao.find(Calendar.class));
+        PermissionContext permissionContext = permissionService.createPermissionContext(user);
+        UserCalendar[] userCalendars = userCalendarService.find(user.getKey());
+        if (permissionService.isAdministrator(permissionContext))
+            return fillUserCalendarDtos(permissionContext, ao.find(Calendar.class), userCalendars, null, null);
+
+        Set<Integer> usableCalendarIds = permissionService.getUsableCalendarIds(permissionContext);
+        Set<Integer> adminCalendarIds = permissionService.getAdminCalendarIds(permissionContext);
+        Set<Integer> calendarIds = new TreeSet<Integer>(usableCalendarIds);
+        for (UserCalendar userCalendar : userCalendars)
+            calendarIds.add(userCalendar.getCalendarId());
+        List<Integer> calendarIdList = new ArrayList<Integer>(calendarIds);
+        List<Calendar> calendars = new ArrayList<Calendar>(calendarIdList.size());
+        for (int from = 0; from < calendarIdList.size(); from += MAX_IN_PARAMETERS) {
+            List<Integer> chunk = calendarIdList.subList(from, Math.min(from + MAX_IN_PARAMETERS, calendarIdList.size()));
+            Collections.addAll(calendars, ao.find(Calendar.class, Query.select().where(String.format("ID IN (%s)", StringUtils.repeat("?", ", ", chunk.size())), chunk.toArray())));
+        }
+        return fillUserCalendarDtos(permissionContext, calendars.toArray(new Calendar[calendars.size()]), userCalendars, usableCalendarIds, adminCalendarIds);
     }
 
     public CalendarDto createCalendar(final ApplicationUser user, final CalendarSettingDto calendarSettingDto) throws GetException {
@@ -275,24 +304,39 @@ public class CalendarServiceImpl implements CalendarService {
         calendar.setColor(calendarSettingDto.getSelectedColor());
         calendar.setEventStart(StringUtils.trimToNull(calendarSettingDto.getSelectedEventStartId()));
         calendar.setEventEnd(StringUtils.trimToNull(calendarSettingDto.getSelectedEventEndId()));
+        calendar.setEventLimit(calendarSettingDto.getSelectedEventLimit() != null ? calendarSettingDto.getSelectedEventLimit() : 0);
         calendar.setDisplayedFields(StringUtils.join(calendarSettingDto.getSelectedDisplayedFields(), ","));
         calendar.save();
     }
 
-    private CalendarDto[] fillUserCalendarDtos(final ApplicationUser user, Calendar[] calendars) {
+    /**
+     * @param usableCalendarIds ids of calendars shared with the user or null for JIRA administrators
+     * @param adminCalendarIds  ids of calendars administered by the user or null for JIRA administrators
+     */
+    private CalendarDto[] fillUserCalendarDtos(PermissionContext permissionContext, Calendar[] calendars, UserCalendar[] userCalendars,
+                                               @Nullable Set<Integer> usableCalendarIds, @Nullable Set<Integer> adminCalendarIds) {
+        ApplicationUser user = permissionContext.getUser();
+        Map<Integer, UserCalendar> userCalendarsById = new HashMap<Integer, UserCalendar>();
+        for (UserCalendar userCalendar : userCalendars)
+            userCalendarsById.put(userCalendar.getCalendarId(), userCalendar);
+        List<Integer> calendarIds = new ArrayList<Integer>(calendars.length);
+        for (Calendar calendar : calendars)
+            calendarIds.add(calendar.getID());
+        Map<Integer, Integer> usersCount = userCalendarService.getUsersCount(calendarIds);
+
         List<CalendarDto> result = new ArrayList<CalendarDto>();
         Set<Integer> selectedCalendars = new TreeSet<Integer>();
         for (Calendar calendar : calendars) {
-            boolean canAdmin = permissionService.hasAdminPermission(user, calendar);
-            boolean canUse = canAdmin || permissionService.hasUsePermission(user, calendar);
-            UserCalendar userCalendar = userCalendarService.find(calendar.getID(), user.getKey());
+            boolean canAdmin = adminCalendarIds == null || adminCalendarIds.contains(calendar.getID());
+            boolean canUse = canAdmin || usableCalendarIds.contains(calendar.getID());
+            UserCalendar userCalendar = userCalendarsById.get(calendar.getID());
             if (canAdmin || canUse || userCalendar != null) {
-                CalendarDto output = buildCalendarOutput(user, userCalendar, calendar, canUse, canAdmin, userCalendar != null && userCalendar.isEnabled(), userCalendar != null, userCalendarService.getUsersCount(calendar.getID()));
+                CalendarDto output = buildCalendarOutput(user, userCalendar, calendar, canUse, canAdmin, userCalendar != null && userCalendar.isEnabled(), userCalendar != null, usersCount.get(calendar.getID()));
                 selectedCalendars.add(calendar.getID());
                 result.add(output);
             }
         }
-        for (UserCalendar userCalendar : userCalendarService.find(user.getKey())) {
+        for (UserCalendar userCalendar : userCalendars) {
             if (!selectedCalendars.contains(userCalendar.getCalendarId())) {
                 CalendarDto output = buildCalendarOutput(user, userCalendar, null, false, false, false, true, 0);
                 output.setHasError(true);
@@ -422,6 +466,9 @@ public class CalendarServiceImpl implements CalendarService {
             throw new IllegalArgumentException("Bad color => " + calendarSettingDto.getSelectedColor());
         if (StringUtils.isBlank(calendarSettingDto.getSelectedEventStartId()))
             throw new RestFieldException(i18nHelper.getText("issue.field.required", i18nHelper.getText("ru.mail.jira.plugins.calendar.dialog.eventStart")), "event-start");
+        Integer eventLimit = calendarSettingDto.getSelectedEventLimit();
+        if (eventLimit != null && (eventLimit <= 0 || eventLimit > pluginSettingsService.getMaxEventLimit()))
+            throw new RestFieldException(i18nHelper.getText("ru.mail.jira.plugins.calendar.dialog.eventLimit.error", String.valueOf(pluginSettingsService.getMaxEventLimit())), "event-limit");
         for (String field : calendarSettingDto.getSelectedDisplayedFields())
             if (field.startsWith("customfield_")) {
                 if (customFieldManager.getCustomFieldObject(field) == null)
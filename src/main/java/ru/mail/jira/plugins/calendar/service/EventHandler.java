@@ -0,0 +1,12 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import ru.mail.jira.plugins.calendar.rest.dto.Event;
+
+import java.io.IOException;
+
+/**
+ * Receives events one by one while they are built from found issues
+ */
+public interface EventHandler {
+    void handle(Event event) throws IOException;
+}
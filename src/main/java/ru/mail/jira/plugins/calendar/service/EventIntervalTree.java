@@ -0,0 +1,82 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import ru.mail.jira.plugins.calendar.rest.dto.Event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable interval tree of events. Events are sorted by start, the middle of every range is the root of the range
+ * and keeps the latest end of the range, so events overlapping a window are found in O(log n + k).
+ */
+final class EventIntervalTree {
+    private final static Comparator<Event> START_COMPARATOR = new Comparator<Event>() {
+        @Override
+        public int compare(Event e1, Event e2) {
+            return e1.getStartTime() < e2.getStartTime() ? -1 : e1.getStartTime() == e2.getStartTime() ? 0 : 1;
+        }
+    };
+
+    private final Event[] events;
+    private final long[] ends;
+    private final long[] maxEnds;
+
+    EventIntervalTree(Collection<Event> events) {
+        this.events = events.toArray(new Event[events.size()]);
+        Arrays.sort(this.events, START_COMPARATOR);
+        this.ends = new long[this.events.length];
+        this.maxEnds = new long[this.events.length];
+        for (int i = 0; i < this.events.length; i++)
+            ends[i] = getInclusiveEnd(this.events[i]);
+        fillMaxEnds(0, this.events.length);
+    }
+
+    /**
+     * @return events which start not later than the window end and end not earlier than the window start, ordered by start
+     */
+    List<Event> find(long windowStart, long windowEnd) {
+        List<Event> result = new ArrayList<Event>();
+        find(0, events.length, windowStart, windowEnd, result);
+        return result;
+    }
+
+    int size() {
+        return events.length;
+    }
+
+    private void find(int from, int to, long windowStart, long windowEnd, List<Event> result) {
+        if (from >= to)
+            return;
+        int middle = (from + to) >>> 1;
+        if (maxEnds[middle] < windowStart)
+            return;
+        find(from, middle, windowStart, windowEnd, result);
+        if (events[middle].getStartTime() > windowEnd)
+            return;
+        if (ends[middle] >= windowStart)
+            result.add(events[middle]);
+        find(middle + 1, to, windowStart, windowEnd, result);
+    }
+
+    private long fillMaxEnds(int from, int to) {
+        if (from >= to)
+            return Long.MIN_VALUE;
+        int middle = (from + to) >>> 1;
+        long maxEnd = Math.max(ends[middle], Math.max(fillMaxEnds(from, middle), fillMaxEnds(middle + 1, to)));
+        maxEnds[middle] = maxEnd;
+        return maxEnd;
+    }
+
+    /**
+     * Ends of date-only fields are moved to the next day for the calendar, here they are moved back
+     * to match the inclusive conditions of the search
+     */
+    private static long getInclusiveEnd(Event event) {
+        if (event.getEndTime() == null)
+            return event.getStartTime();
+        return event.isEndDateOnly() ? event.getEndTime() - 1 : event.getEndTime();
+    }
+}
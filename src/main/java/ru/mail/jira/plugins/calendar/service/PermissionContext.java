@@ -0,0 +1,51 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import com.atlassian.jira.user.ApplicationUser;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Permission state of a single user resolved once per request: global admin flag, group names
+ * and already checked project roles and project permissions. Not thread safe, do not keep it between requests.
+ */
+public final class PermissionContext {
+    private final ApplicationUser user;
+    private Boolean administrator;
+    private Set<String> groupNames;
+    private final Map<String, Boolean> projectRoles = new HashMap<String, Boolean>();
+    private final Map<String, Boolean> projectPermissions = new HashMap<String, Boolean>();
+
+    PermissionContext(ApplicationUser user) {
+        this.user = user;
+    }
+
+    public ApplicationUser getUser() {
+        return user;
+    }
+
+    Boolean getAdministrator() {
+        return administrator;
+    }
+
+    void setAdministrator(boolean administrator) {
+        this.administrator = administrator;
+    }
+
+    Set<String> getGroupNames() {
+        return groupNames;
+    }
+
+    void setGroupNames(Set<String> groupNames) {
+        this.groupNames = groupNames;
+    }
+
+    Map<String, Boolean> getProjectRoles() {
+        return projectRoles;
+    }
+
+    Map<String, Boolean> getProjectPermissions() {
+        return projectPermissions;
+    }
+}
@@ -8,6 +8,7 @@ import ru.mail.jira.plugins.calendar.model.PermissionType;
 import ru.mail.jira.plugins.calendar.rest.dto.PermissionItemDto;
 
 import java.util.List;
+import java.util.Set;
 
 @Transactional
 public interface PermissionService {
@@ -18,6 +19,24 @@ public interface PermissionService {
 
     boolean hasUsePermission(ApplicationUser user, Calendar calendar);
 
+    PermissionContext createPermissionContext(ApplicationUser user);
+
+    boolean hasAdminPermission(PermissionContext context, Calendar calendar);
+
+    boolean hasUsePermission(PermissionContext context, Calendar calendar);
+
+    boolean isAdministrator(PermissionContext context);
+
+    /**
+     * @return ids of calendars shared with the user, taken from the permission index
+     */
+    Set<Integer> getUsableCalendarIds(PermissionContext context);
+
+    /**
+     * @return ids of calendars the user can administer by calendar permissions, JIRA administrators are not taken into account
+     */
+    Set<Integer> getAdminCalendarIds(PermissionContext context);
+
     void removeCalendarPermissions(Calendar calendar);
 
     Permission getOrCreate(Calendar calendar, PermissionType permissionType, String subject);
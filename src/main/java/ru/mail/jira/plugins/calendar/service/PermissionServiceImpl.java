@@ -1,7 +1,6 @@
 package ru.mail.jira.plugins.calendar.service;
 
 import com.atlassian.activeobjects.external.ActiveObjects;
-import com.atlassian.crowd.embedded.api.Group;
 import com.atlassian.jira.avatar.Avatar;
 import com.atlassian.jira.avatar.AvatarService;
 import com.atlassian.jira.permission.GlobalPermissionKey;
@@ -23,22 +22,33 @@ import ru.mail.jira.plugins.calendar.model.PermissionType;
 import ru.mail.jira.plugins.calendar.rest.dto.PermissionItemDto;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class PermissionServiceImpl implements PermissionService {
     private final ActiveObjects ao;
     private final AvatarService avatarService;
+    private final CalendarPermissionIndex calendarPermissionIndex;
     private final GlobalPermissionManager globalPermissionManager;
     private final GroupManager groupManager;
     private final PermissionManager permissionManager;
     private final ProjectManager projectManager;
     private final ProjectRoleManager projectRoleManager;
     private final UserManager userManager;
+    // Equal for all changes, so the index is dropped once per transaction
+    private final Runnable invalidateIndex = new Runnable() {
+        @Override
+        public void run() {
+            calendarPermissionIndex.invalidate();
+        }
+    };
 
-    public PermissionServiceImpl(ActiveObjects ao, AvatarService avatarService, GlobalPermissionManager globalPermissionManager, GroupManager groupManager, PermissionManager permissionManager, ProjectManager projectManager, ProjectRoleManager projectRoleManager, UserManager userManager) {
+    public PermissionServiceImpl(ActiveObjects ao, AvatarService avatarService, CalendarPermissionIndex calendarPermissionIndex, GlobalPermissionManager globalPermissionManager, GroupManager groupManager, PermissionManager permissionManager, ProjectManager projectManager, ProjectRoleManager projectRoleManager, UserManager userManager) {
         this.ao = ao;
         this.avatarService = avatarService;
+        this.calendarPermissionIndex = calendarPermissionIndex;
         this.globalPermissionManager = globalPermissionManager;
         this.groupManager = groupManager;
         this.permissionManager = permissionManager;
@@ -68,78 +78,114 @@ public class PermissionServiceImpl implements PermissionService {
 
     @Override
     public boolean hasAdminPermission(ApplicationUser user, Calendar calendar) {
-        if (isAdministrator(user))
-            return true;
-        else {
-            Permission[] permissions = calendar.getPermissions();
-            for (Permission permission : permissions)
-                if (permission.isAdmin()) {
-                    String subject = permission.getPermissionValue();
-                    switch (permission.getPermissionType()) {
-                        case USER:
-                            if (subject.equals(user.getKey()))
-                                return true;
-                            break;
-                        case GROUP:
-                            Group group = groupManager.getGroup(subject);
-                            if (group != null && groupManager.isUserInGroup(user, group))
-                                return true;
-                            break;
-                        case PROJECT_ROLE:
-                            Long projectId = PermissionUtils.getProject(subject);
-                            Long projectRoleId = PermissionUtils.getProjectRole(subject);
-                            if (projectId == null)
-                                continue;
-                            Project project = projectManager.getProjectObj(projectId);
-                            if (projectRoleId != null) {
-                                ProjectRole projectRole = projectRoleManager.getProjectRole(projectRoleId);
-                                if (projectRole != null && projectRoleManager.isUserInProjectRole(user, projectRole, project))
-                                    return true;
-                            } else if (permissionManager.hasPermission(Permissions.ADMINISTER, project, user, false))
-                                return true;
-                            break;
-                    }
-                }
-            return false;
-        }
+        return hasAdminPermission(createPermissionContext(user), calendar);
     }
 
     @Override
     public boolean hasUsePermission(ApplicationUser user, Calendar calendar) {
-        Permission[] permissions = calendar.getPermissions();
-        for (Permission permission : permissions) {
-            String subject = permission.getPermissionValue();
-            switch (permission.getPermissionType()) {
-                case USER:
-                    if (subject.equals(user.getKey()))
-                        return true;
-                    break;
-                case GROUP:
-                    Group group = groupManager.getGroup(subject);
-                    if (group != null && groupManager.isUserInGroup(user, group))
-                        return true;
-                    break;
-                case PROJECT_ROLE:
-                    Long projectId = PermissionUtils.getProject(subject);
-                    Long projectRoleId = PermissionUtils.getProjectRole(subject);
-                    if (projectId == null)
-                        continue;
-                    Project project = projectManager.getProjectObj(projectId);
-                    if (projectRoleId != null) {
+        return hasUsePermission(createPermissionContext(user), calendar);
+    }
+
+    @Override
+    public PermissionContext createPermissionContext(ApplicationUser user) {
+        return new PermissionContext(user);
+    }
+
+    @Override
+    public boolean hasAdminPermission(PermissionContext context, Calendar calendar) {
+        if (isAdministrator(context))
+            return true;
+        for (Permission permission : calendar.getPermissions())
+            if (permission.isAdmin() && hasPermission(context, permission.getPermissionType(), permission.getPermissionValue(), Permissions.ADMINISTER))
+                return true;
+        return false;
+    }
+
+    @Override
+    public boolean hasUsePermission(PermissionContext context, Calendar calendar) {
+        for (Permission permission : calendar.getPermissions())
+            if (hasPermission(context, permission.getPermissionType(), permission.getPermissionValue(), Permissions.BROWSE))
+                return true;
+        return false;
+    }
+
+    @Override
+    public boolean isAdministrator(PermissionContext context) {
+        if (context.getAdministrator() == null)
+            context.setAdministrator(isAdministrator(context.getUser()));
+        return context.getAdministrator();
+    }
+
+    @Override
+    public Set<Integer> getUsableCalendarIds(PermissionContext context) {
+        return getCalendarIds(context, false);
+    }
+
+    @Override
+    public Set<Integer> getAdminCalendarIds(PermissionContext context) {
+        return getCalendarIds(context, true);
+    }
+
+    private Set<Integer> getCalendarIds(PermissionContext context, boolean admin) {
+        Set<Integer> result = new HashSet<Integer>(calendarPermissionIndex.getCalendarIds(PermissionType.USER, context.getUser().getKey(), admin));
+        for (String groupName : getGroupNames(context))
+            result.addAll(calendarPermissionIndex.getCalendarIds(PermissionType.GROUP, groupName, admin));
+        for (String subject : calendarPermissionIndex.getProjectRoleSubjects()) {
+            Set<Integer> calendarIds = calendarPermissionIndex.getCalendarIds(PermissionType.PROJECT_ROLE, subject, admin);
+            if (!calendarIds.isEmpty() && !result.containsAll(calendarIds) && hasPermission(context, PermissionType.PROJECT_ROLE, subject, admin ? Permissions.ADMINISTER : Permissions.BROWSE))
+                result.addAll(calendarIds);
+        }
+        return result;
+    }
+
+    private boolean hasPermission(PermissionContext context, PermissionType permissionType, String subject, int projectPermission) {
+        switch (permissionType) {
+            case USER:
+                return subject.equals(context.getUser().getKey());
+            case GROUP:
+                return getGroupNames(context).contains(subject.toLowerCase());
+            case PROJECT_ROLE:
+                Long projectId = PermissionUtils.getProject(subject);
+                Long projectRoleId = PermissionUtils.getProjectRole(subject);
+                if (projectId == null)
+                    return false;
+                if (projectRoleId != null) {
+                    Boolean inProjectRole = context.getProjectRoles().get(subject);
+                    if (inProjectRole == null) {
+                        Project project = projectManager.getProjectObj(projectId);
                         ProjectRole projectRole = projectRoleManager.getProjectRole(projectRoleId);
-                        if (projectRole != null && projectRoleManager.isUserInProjectRole(user, projectRole, project))
-                            return true;
-                    } else if (permissionManager.hasPermission(Permissions.BROWSE, project, user, false))
-                        return true;
-                    break;
-            }
+                        inProjectRole = project != null && projectRole != null && projectRoleManager.isUserInProjectRole(context.getUser(), projectRole, project);
+                        context.getProjectRoles().put(subject, inProjectRole);
+                    }
+                    return inProjectRole;
+                } else {
+                    String key = projectPermission + "-" + projectId;
+                    Boolean hasProjectPermission = context.getProjectPermissions().get(key);
+                    if (hasProjectPermission == null) {
+                        Project project = projectManager.getProjectObj(projectId);
+                        hasProjectPermission = project != null && permissionManager.hasPermission(projectPermission, project, context.getUser(), false);
+                        context.getProjectPermissions().put(key, hasProjectPermission);
+                    }
+                    return hasProjectPermission;
+                }
         }
         return false;
     }
 
+    private Set<String> getGroupNames(PermissionContext context) {
+        if (context.getGroupNames() == null) {
+            Set<String> groupNames = new HashSet<String>();
+            for (String groupName : groupManager.getGroupNamesForUser(context.getUser()))
+                groupNames.add(groupName.toLowerCase());
+            context.setGroupNames(groupNames);
+        }
+        return context.getGroupNames();
+    }
+
     @Override
     public void removeCalendarPermissions(Calendar calendar) {
         ao.delete(calendar.getPermissions());
+        AfterCommitProcessor.runAfterCommit(invalidateIndex);
     }
 
     @Override
@@ -150,6 +196,7 @@ public class PermissionServiceImpl implements PermissionService {
         permission.setPermissionType(permissionType);
         permission.setPermissionValue(subject);
         permission.save();
+        AfterCommitProcessor.runAfterCommit(invalidateIndex);
     }
 
     @Override
@@ -165,6 +212,7 @@ public class PermissionServiceImpl implements PermissionService {
             toDelete.remove(permission.getID());
         }
         ao.delete(toDelete.values().toArray(new Permission[toDelete.size()]));
+        AfterCommitProcessor.runAfterCommit(invalidateIndex);
     }
 
     @Override
@@ -178,6 +226,7 @@ public class PermissionServiceImpl implements PermissionService {
             permission.setPermissionValue(permissionValue);
             permission.setPermissionType(permissionType);
             permission.save();
+            AfterCommitProcessor.runAfterCommit(invalidateIndex);
             return permission;
         } else
             return permissions[0];
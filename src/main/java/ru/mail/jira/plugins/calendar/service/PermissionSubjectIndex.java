@@ -0,0 +1,506 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheLoader;
+import com.atlassian.cache.CacheManager;
+import com.atlassian.cache.CacheSettingsBuilder;
+import com.atlassian.cache.CachedReference;
+import com.atlassian.cache.Supplier;
+import com.atlassian.crowd.embedded.api.Group;
+import com.atlassian.crowd.event.group.GroupCreatedEvent;
+import com.atlassian.crowd.event.group.GroupDeletedEvent;
+import com.atlassian.crowd.event.user.UserCreatedEvent;
+import com.atlassian.crowd.event.user.UserDeletedEvent;
+import com.atlassian.crowd.event.user.UserEditedEvent;
+import com.atlassian.crowd.event.user.UserRenamedEvent;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.jira.event.ProjectCreatedEvent;
+import com.atlassian.jira.event.ProjectDeletedEvent;
+import com.atlassian.jira.event.ProjectUpdatedEvent;
+import com.atlassian.jira.permission.ProjectPermissions;
+import com.atlassian.jira.project.Project;
+import com.atlassian.jira.project.ProjectManager;
+import com.atlassian.jira.security.PermissionManager;
+import com.atlassian.jira.security.groups.GroupManager;
+import com.atlassian.jira.security.roles.ProjectRole;
+import com.atlassian.jira.security.roles.ProjectRoleManager;
+import com.atlassian.jira.user.ApplicationUser;
+import com.atlassian.jira.user.util.UserManager;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory prefix index of users and groups for the permission subject picker. Every word of the display name,
+ * the username and the email is a prefix to match, so a filter costs a binary search and a walk over the matching
+ * words instead of a scan of all users. The index is built lazily and dropped on user and group events.
+ * Project roles are kept as a catalogue of all project and role pairs with the same prefix index over the project
+ * name, the project key and the role name. It is dropped on project events and when the roles differ from the ones
+ * it was built with, roles are compared at most once per {@link #CHECK_ROLES_MILLIS}. Projects visible to a user
+ * are kept for {@link #EXPIRE_VISIBLE_PROJECTS_AFTER_WRITE_MINUTES}, so typing a filter does not look them up again.
+ */
+public class PermissionSubjectIndex implements InitializingBean, DisposableBean {
+    private final static Logger log = LoggerFactory.getLogger(PermissionSubjectIndex.class);
+
+    private final static String CACHE_NAME = PermissionSubjectIndex.class.getName() + ".index";
+    private final static String PROJECT_ROLES_CACHE_NAME = PermissionSubjectIndex.class.getName() + ".projectRoles";
+    private final static String VISIBLE_PROJECTS_CACHE_NAME = PermissionSubjectIndex.class.getName() + ".visibleProjects";
+    private final static int EXPIRE_VISIBLE_PROJECTS_AFTER_WRITE_MINUTES = 1;
+    private final static long CHECK_ROLES_MILLIS = 60 * 1000L;
+    // Directory synchronisation does not always produce events, so the index is rebuilt from time to time
+    private final static int EXPIRE_AFTER_WRITE_MINUTES = 30;
+
+    private final EventPublisher eventPublisher;
+    private final ProjectRoleManager projectRoleManager;
+    private final CachedReference<Index> index;
+    private final CachedReference<ProjectRoleCatalogue> projectRoles;
+    private final Cache<String, Set<Long>> visibleProjects;
+    private volatile long rolesCheckedAt;
+
+    public PermissionSubjectIndex(CacheManager cacheManager, EventPublisher eventPublisher, final GroupManager groupManager, final PermissionManager permissionManager,
+                                  final ProjectManager projectManager, final ProjectRoleManager projectRoleManager, final UserManager userManager) {
+        this.eventPublisher = eventPublisher;
+        this.projectRoleManager = projectRoleManager;
+        this.index = cacheManager.getCachedReference(CACHE_NAME, new Supplier<Index>() {
+            @Override
+            public Index get() {
+                long startTime = System.currentTimeMillis();
+                Index result = new Index(userManager.getAllApplicationUsers(), groupManager.getAllGroups());
+                if (log.isDebugEnabled())
+                    log.debug("Permission subject index is built from {} users and {} groups in {} ms",
+                              new Object[]{result.users.size(), result.groups.size(), System.currentTimeMillis() - startTime});
+                return result;
+            }
+        }, new CacheSettingsBuilder().local()
+                                     .expireAfterWrite(EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                                     .build());
+        this.projectRoles = cacheManager.getCachedReference(PROJECT_ROLES_CACHE_NAME, new Supplier<ProjectRoleCatalogue>() {
+            @Override
+            public ProjectRoleCatalogue get() {
+                ProjectRoleCatalogue result = new ProjectRoleCatalogue(projectManager.getProjectObjects(), projectRoleManager.getProjectRoles());
+                if (log.isDebugEnabled())
+                    log.debug("Project role catalogue is built with {} subjects", result.subjects.size());
+                return result;
+            }
+        }, new CacheSettingsBuilder().local()
+                                     .expireAfterWrite(EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                                     .build());
+        this.visibleProjects = cacheManager.getCache(VISIBLE_PROJECTS_CACHE_NAME, new CacheLoader<String, Set<Long>>() {
+            @Nonnull
+            @Override
+            public Set<Long> load(@Nonnull String userKey) {
+                Set<Long> result = new HashSet<Long>();
+                ApplicationUser user = userManager.getUserByKey(userKey);
+                if (user != null)
+                    for (Project project : permissionManager.getProjects(ProjectPermissions.BROWSE_PROJECTS, user))
+                        result.add(project.getId());
+                return result;
+            }
+        }, new CacheSettingsBuilder().local()
+                                     .expireAfterWrite(EXPIRE_VISIBLE_PROJECTS_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                                     .build());
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        eventPublisher.unregister(this);
+        index.reset();
+        projectRoles.reset();
+        visibleProjects.removeAll();
+    }
+
+    /**
+     * @return first users ordered by display name, all users for an empty filter and active ones matching the filter otherwise
+     */
+    public Matches<ApplicationUser> findUsers(String filter, int limit) {
+        Index index = this.index.get();
+        return StringUtils.isBlank(filter) ? Matches.first(index.users, limit) : index.activeUserIndex.find(filter, null, limit);
+    }
+
+    /**
+     * @return first groups ordered by name, all groups for an empty filter and matching ones otherwise
+     */
+    public Matches<Group> findGroups(String filter, int limit) {
+        Index index = this.index.get();
+        return StringUtils.isBlank(filter) ? Matches.first(index.groups, limit) : index.groupIndex.find(filter, null, limit);
+    }
+
+    /**
+     * @param groupNames names of the groups to look among, groups missing in the index are left out
+     * @return first of these groups ordered by name, all of them for an empty filter and matching ones otherwise
+     */
+    public Matches<Group> findGroups(String filter, Collection<String> groupNames, int limit) {
+        Index index = this.index.get();
+        BitSet among = new BitSet(index.groups.size());
+        for (String groupName : groupNames) {
+            Integer groupId = index.groupIds.get(groupName.toLowerCase());
+            if (groupId != null)
+                among.set(groupId);
+        }
+        return index.groupIndex.find(StringUtils.defaultString(filter), among, limit);
+    }
+
+    /**
+     * Subjects are ordered by project and role, roles of the last found project are all returned even over the limit.
+     *
+     * @param user user to find subjects of visible projects for, null for all projects
+     * @return all subjects of the projects for an empty filter and the ones with a word of the project name,
+     * the project key or the role name starting with the filter otherwise
+     */
+    public Matches<ProjectRoleSubject> findProjectRoles(String filter, @Nullable ApplicationUser user, int limit) {
+        ProjectRoleCatalogue catalogue = getProjectRoleCatalogue();
+        BitSet among = null;
+        if (user != null) {
+            among = new BitSet(catalogue.subjects.size());
+            for (Long projectId : visibleProjects.get(user.getKey())) {
+                int[] range = catalogue.projectRanges.get(projectId);
+                if (range != null)
+                    among.set(range[0], range[1]);
+            }
+        }
+        BitSet found = catalogue.subjectIndex.match(StringUtils.defaultString(filter), among);
+        List<ProjectRoleSubject> items = new ArrayList<ProjectRoleSubject>();
+        long lastAddedProjectId = -1;
+        for (int subjectId = found.nextSetBit(0); subjectId >= 0; subjectId = found.nextSetBit(subjectId + 1)) {
+            ProjectRoleSubject subject = catalogue.subjects.get(subjectId);
+            if (items.size() < limit || lastAddedProjectId == subject.projectId) {
+                lastAddedProjectId = subject.projectId;
+                items.add(subject);
+            } else
+                break;
+        }
+        return new Matches<ProjectRoleSubject>(items, found.cardinality());
+    }
+
+    private ProjectRoleCatalogue getProjectRoleCatalogue() {
+        ProjectRoleCatalogue catalogue = projectRoles.get();
+        long now = System.currentTimeMillis();
+        if (rolesCheckedAt + CHECK_ROLES_MILLIS < now) {
+            rolesCheckedAt = now;
+            if (!catalogue.rolesFingerprint.equals(ProjectRoleCatalogue.fingerprint(projectRoleManager.getProjectRoles()))) {
+                projectRoles.reset();
+                catalogue = projectRoles.get();
+            }
+        }
+        return catalogue;
+    }
+
+    public void invalidate() {
+        index.reset();
+    }
+
+    @EventListener
+    public void onProjectCreated(ProjectCreatedEvent event) {
+        projectRoles.reset();
+        visibleProjects.removeAll();
+    }
+
+    @EventListener
+    public void onProjectUpdated(ProjectUpdatedEvent event) {
+        projectRoles.reset();
+        visibleProjects.removeAll();
+    }
+
+    @EventListener
+    public void onProjectDeleted(ProjectDeletedEvent event) {
+        projectRoles.reset();
+        visibleProjects.removeAll();
+    }
+
+    @EventListener
+    public void onUserCreated(UserCreatedEvent event) {
+        invalidate();
+    }
+
+    @EventListener
+    public void onUserEdited(UserEditedEvent event) {
+        invalidate();
+    }
+
+    @EventListener
+    public void onUserRenamed(UserRenamedEvent event) {
+        invalidate();
+    }
+
+    @EventListener
+    public void onUserDeleted(UserDeletedEvent event) {
+        invalidate();
+    }
+
+    @EventListener
+    public void onGroupCreated(GroupCreatedEvent event) {
+        invalidate();
+    }
+
+    @EventListener
+    public void onGroupDeleted(GroupDeletedEvent event) {
+        invalidate();
+    }
+
+    /**
+     * Found entries limited to the requested count and the count of all matching entries
+     */
+    public static final class Matches<T> {
+        private final List<T> items;
+        private final int total;
+
+        private Matches(List<T> items, int total) {
+            this.items = Collections.unmodifiableList(items);
+            this.total = total;
+        }
+
+        private static <T> Matches<T> first(List<T> entries, int limit) {
+            return new Matches<T>(entries.subList(0, Math.min(limit, entries.size())), entries.size());
+        }
+
+        public List<T> getItems() {
+            return items;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * Project and role pair which can be given a permission
+     */
+    public static final class ProjectRoleSubject {
+        private final long projectId;
+        private final String projectName;
+        private final String projectKey;
+        private final long projectAvatarId;
+        private final long roleId;
+        private final String roleName;
+
+        private ProjectRoleSubject(Project project, ProjectRole role) {
+            this.projectId = project.getId();
+            this.projectName = project.getName();
+            this.projectKey = project.getKey();
+            this.projectAvatarId = project.getAvatar().getId();
+            this.roleId = role.getId();
+            this.roleName = role.getName();
+        }
+
+        public long getProjectId() {
+            return projectId;
+        }
+
+        public String getProjectName() {
+            return projectName;
+        }
+
+        public String getProjectKey() {
+            return projectKey;
+        }
+
+        public long getProjectAvatarId() {
+            return projectAvatarId;
+        }
+
+        public long getRoleId() {
+            return roleId;
+        }
+
+        public String getRoleName() {
+            return roleName;
+        }
+    }
+
+    private static final class ProjectRoleCatalogue {
+        private final List<ProjectRoleSubject> subjects;
+        // Subjects of a project follow each other, the range is from inclusive and to exclusive
+        private final Map<Long, int[]> projectRanges;
+        private final PrefixIndex<ProjectRoleSubject> subjectIndex;
+        private final String rolesFingerprint;
+
+        private ProjectRoleCatalogue(List<Project> projects, Collection<ProjectRole> roles) {
+            this.subjects = new ArrayList<ProjectRoleSubject>(projects.size() * roles.size());
+            this.projectRanges = new HashMap<Long, int[]>(projects.size());
+            List<String[]> subjectTexts = new ArrayList<String[]>(projects.size() * roles.size());
+            for (Project project : projects) {
+                int from = subjects.size();
+                for (ProjectRole role : roles) {
+                    ProjectRoleSubject subject = new ProjectRoleSubject(project, role);
+                    subjects.add(subject);
+                    subjectTexts.add(new String[]{subject.projectName, subject.projectKey, subject.roleName});
+                }
+                projectRanges.put(project.getId(), new int[]{from, subjects.size()});
+            }
+            this.subjectIndex = new PrefixIndex<ProjectRoleSubject>(subjects, subjectTexts);
+            this.rolesFingerprint = fingerprint(roles);
+        }
+
+        /**
+         * Roles are few and kept in memory by JIRA, so they are compared from time to time instead of listening to their changes
+         */
+        private static String fingerprint(Collection<ProjectRole> roles) {
+            StringBuilder result = new StringBuilder();
+            for (ProjectRole role : roles)
+                result.append(role.getId()).append(':').append(role.getName()).append('|');
+            return result.toString();
+        }
+    }
+
+    private static final class Index {
+        private final List<ApplicationUser> users;
+        private final List<Group> groups;
+        private final Map<String, Integer> groupIds;
+        private final PrefixIndex<ApplicationUser> activeUserIndex;
+        private final PrefixIndex<Group> groupIndex;
+
+        private Index(Collection<ApplicationUser> users, Collection<Group> groups) {
+            this.users = new ArrayList<ApplicationUser>(users);
+            Collections.sort(this.users, new Comparator<ApplicationUser>() {
+                @Override
+                public int compare(ApplicationUser u1, ApplicationUser u2) {
+                    return String.CASE_INSENSITIVE_ORDER.compare(StringUtils.defaultString(u1.getDisplayName()), StringUtils.defaultString(u2.getDisplayName()));
+                }
+            });
+            this.groups = new ArrayList<Group>(groups);
+            Collections.sort(this.groups, new Comparator<Group>() {
+                @Override
+                public int compare(Group g1, Group g2) {
+                    return String.CASE_INSENSITIVE_ORDER.compare(g1.getName(), g2.getName());
+                }
+            });
+
+            List<ApplicationUser> activeUsers = new ArrayList<ApplicationUser>(this.users.size());
+            List<String[]> userTexts = new ArrayList<String[]>(this.users.size());
+            for (ApplicationUser user : this.users)
+                if (user.isActive()) {
+                    activeUsers.add(user);
+                    userTexts.add(new String[]{user.getDisplayName(), user.getName(), user.getEmailAddress()});
+                }
+            this.activeUserIndex = new PrefixIndex<ApplicationUser>(activeUsers, userTexts);
+
+            this.groupIds = new HashMap<String, Integer>(this.groups.size());
+            List<String[]> groupTexts = new ArrayList<String[]>(this.groups.size());
+            for (Group group : this.groups) {
+                groupIds.put(group.getName().toLowerCase(), groupTexts.size());
+                groupTexts.add(new String[]{group.getName()});
+            }
+            this.groupIndex = new PrefixIndex<Group>(this.groups, groupTexts);
+        }
+    }
+
+    /**
+     * Sorted array of the lowercased texts of entries starting from every word, an entry matches a filter if
+     * any of its words starts with the filter. Entries are found in the order they were given. Like the user
+     * picker of JIRA, a filter has to start a word, it is not searched inside of words.
+     */
+    static final class PrefixIndex<T> {
+        private final List<T> entries;
+        private final String[] words;
+        private final int[] entryIds;
+
+        PrefixIndex(List<T> entries, List<String[]> texts) {
+            this.entries = entries;
+            List<Word> words = new ArrayList<Word>();
+            for (int entryId = 0; entryId < entries.size(); entryId++)
+                for (String text : texts.get(entryId))
+                    if (StringUtils.isNotEmpty(text))
+                        addWords(words, text.toLowerCase(), entryId);
+            Word[] sortedWords = words.toArray(new Word[words.size()]);
+            Arrays.sort(sortedWords);
+            this.words = new String[sortedWords.length];
+            this.entryIds = new int[sortedWords.length];
+            for (int i = 0; i < sortedWords.length; i++) {
+                this.words[i] = sortedWords[i].text;
+                this.entryIds[i] = sortedWords[i].entryId;
+            }
+        }
+
+        /**
+         * @param among ids of the entries to look among in the order they were given, null for all entries
+         */
+        Matches<T> find(String filter, @Nullable BitSet among, int limit) {
+            BitSet found = match(filter, among);
+            List<T> items = new ArrayList<T>(Math.min(limit, found.cardinality()));
+            for (int entryId = found.nextSetBit(0); entryId >= 0 && items.size() < limit; entryId = found.nextSetBit(entryId + 1))
+                items.add(entries.get(entryId));
+            return new Matches<T>(items, found.cardinality());
+        }
+
+        /**
+         * @return ids of the matching entries, all of them for an empty filter
+         */
+        BitSet match(String filter, @Nullable BitSet among) {
+            filter = filter.trim().toLowerCase();
+            if (filter.isEmpty()) {
+                if (among != null)
+                    return (BitSet) among.clone();
+                BitSet all = new BitSet(entries.size());
+                all.set(0, entries.size());
+                return all;
+            }
+            BitSet found = new BitSet(entries.size());
+            for (int i = lowerBound(filter); i < words.length && words[i].startsWith(filter); i++)
+                found.set(entryIds[i]);
+            if (among != null)
+                found.and(among);
+            return found;
+        }
+
+        private int lowerBound(String filter) {
+            int from = 0;
+            int to = words.length;
+            while (from < to) {
+                int middle = (from + to) >>> 1;
+                if (words[middle].compareTo(filter) < 0)
+                    from = middle + 1;
+                else
+                    to = middle;
+            }
+            return from;
+        }
+
+        /**
+         * Adds the whole text and its rests from every word, so filters with several words match too
+         */
+        private static void addWords(List<Word> words, String text, int entryId) {
+            words.add(new Word(text, entryId));
+            for (int i = 1; i < text.length(); i++)
+                if (!Character.isLetterOrDigit(text.charAt(i - 1)) && Character.isLetterOrDigit(text.charAt(i)))
+                    words.add(new Word(text.substring(i), entryId));
+        }
+    }
+
+    private static final class Word implements Comparable<Word> {
+        private final String text;
+        private final int entryId;
+
+        private Word(String text, int entryId) {
+            this.text = text;
+            this.entryId = entryId;
+        }
+
+        @Override
+        public int compareTo(Word word) {
+            return text.compareTo(word.text);
+        }
+    }
+}
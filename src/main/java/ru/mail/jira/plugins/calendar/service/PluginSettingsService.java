@@ -0,0 +1,147 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Administrator level settings of the plugin
+ */
+public class PluginSettingsService {
+    private final static Logger log = LoggerFactory.getLogger(PluginSettingsService.class);
+
+    private static final String PLUGIN_KEY = "ru.mail.jira.plugins.mailrucal";
+    private static final String EVENT_LIMIT_KEY = "eventLimit";
+    private static final String MAX_EVENT_LIMIT_KEY = "maxEventLimit";
+    private static final String SEARCH_THREADS_KEY = "searchThreads";
+    private static final String ICS_MONTHS_BEFORE_KEY = "icsMonthsBefore";
+    private static final String ICS_MONTHS_AFTER_KEY = "icsMonthsAfter";
+    private static final String MAX_ICS_MONTHS_KEY = "maxIcsMonths";
+    private static final String ICS_EVENT_LIMIT_KEY = "icsEventLimit";
+    private static final String MAX_ICS_EVENT_LIMIT_KEY = "maxIcsEventLimit";
+    private static final String EVENT_INDEX_SIZE_KEY = "eventIndexSize";
+
+    public static final int DEFAULT_EVENT_LIMIT = 2000;
+    public static final int DEFAULT_MAX_EVENT_LIMIT = 10000;
+    public static final int DEFAULT_SEARCH_THREADS = 4;
+    public static final int MAX_SEARCH_THREADS = 32;
+    public static final int DEFAULT_ICS_MONTHS_BEFORE = 3;
+    public static final int DEFAULT_ICS_MONTHS_AFTER = 1;
+    public static final int DEFAULT_MAX_ICS_MONTHS = 12;
+    public static final int DEFAULT_ICS_EVENT_LIMIT = 2000;
+    public static final int DEFAULT_MAX_ICS_EVENT_LIMIT = 10000;
+    public static final int MAX_EVENT_INDEX_SIZE = 1000000;
+
+    private final PluginSettingsFactory pluginSettingsFactory;
+
+    public PluginSettingsService(PluginSettingsFactory pluginSettingsFactory) {
+        this.pluginSettingsFactory = pluginSettingsFactory;
+    }
+
+    /** Events limit of calendars without own limit */
+    public int getEventLimit() {
+        return getInt(EVENT_LIMIT_KEY, DEFAULT_EVENT_LIMIT);
+    }
+
+    public void setEventLimit(int eventLimit) {
+        putInt(EVENT_LIMIT_KEY, eventLimit);
+    }
+
+    /** Upper bound of all events limits */
+    public int getMaxEventLimit() {
+        return getInt(MAX_EVENT_LIMIT_KEY, DEFAULT_MAX_EVENT_LIMIT);
+    }
+
+    public void setMaxEventLimit(int maxEventLimit) {
+        putInt(MAX_EVENT_LIMIT_KEY, maxEventLimit);
+    }
+
+    /** Count of threads searching events of several calendars in parallel */
+    public int getSearchThreads() {
+        int searchThreads = getInt(SEARCH_THREADS_KEY, DEFAULT_SEARCH_THREADS);
+        return searchThreads > 0 && searchThreads <= MAX_SEARCH_THREADS ? searchThreads : DEFAULT_SEARCH_THREADS;
+    }
+
+    public void setSearchThreads(int searchThreads) {
+        putInt(SEARCH_THREADS_KEY, searchThreads);
+    }
+
+    /** Months before today included into ICS feeds without own window */
+    public int getIcsMonthsBefore() {
+        return getInt(ICS_MONTHS_BEFORE_KEY, DEFAULT_ICS_MONTHS_BEFORE);
+    }
+
+    public void setIcsMonthsBefore(int icsMonthsBefore) {
+        putInt(ICS_MONTHS_BEFORE_KEY, icsMonthsBefore);
+    }
+
+    /** Months after today included into ICS feeds without own window */
+    public int getIcsMonthsAfter() {
+        return getInt(ICS_MONTHS_AFTER_KEY, DEFAULT_ICS_MONTHS_AFTER);
+    }
+
+    public void setIcsMonthsAfter(int icsMonthsAfter) {
+        putInt(ICS_MONTHS_AFTER_KEY, icsMonthsAfter);
+    }
+
+    /** Upper bound of months before and after today a feed can ask for */
+    public int getMaxIcsMonths() {
+        return getInt(MAX_ICS_MONTHS_KEY, DEFAULT_MAX_ICS_MONTHS);
+    }
+
+    public void setMaxIcsMonths(int maxIcsMonths) {
+        putInt(MAX_ICS_MONTHS_KEY, maxIcsMonths);
+    }
+
+    /** Events limit of ICS feeds without own limit */
+    public int getIcsEventLimit() {
+        return getInt(ICS_EVENT_LIMIT_KEY, DEFAULT_ICS_EVENT_LIMIT);
+    }
+
+    public void setIcsEventLimit(int icsEventLimit) {
+        putInt(ICS_EVENT_LIMIT_KEY, icsEventLimit);
+    }
+
+    /** Upper bound of events limits of ICS feeds */
+    public int getMaxIcsEventLimit() {
+        return getInt(MAX_ICS_EVENT_LIMIT_KEY, DEFAULT_MAX_ICS_EVENT_LIMIT);
+    }
+
+    public void setMaxIcsEventLimit(int maxIcsEventLimit) {
+        putInt(MAX_ICS_EVENT_LIMIT_KEY, maxIcsEventLimit);
+    }
+
+    /** Count of events kept in the in-memory event indexes, 0 turns the indexes off */
+    public int getEventIndexSize() {
+        int eventIndexSize = getInt(EVENT_INDEX_SIZE_KEY, 0);
+        return eventIndexSize > 0 && eventIndexSize <= MAX_EVENT_INDEX_SIZE ? eventIndexSize : 0;
+    }
+
+    public void setEventIndexSize(int eventIndexSize) {
+        putInt(EVENT_INDEX_SIZE_KEY, eventIndexSize);
+    }
+
+    /** Maximum count of events which are found for the calendar by one request */
+    public int getEventLimit(CalendarPlan plan) {
+        int limit = plan.getEventLimit() > 0 ? plan.getEventLimit() : getEventLimit();
+        return Math.min(limit, getMaxEventLimit());
+    }
+
+    private int getInt(String key, int defaultValue) {
+        Object value = pluginSettingsFactory.createSettingsForKey(PLUGIN_KEY).get(key);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.toString());
+        } catch (NumberFormatException e) {
+            log.error(String.format("Bad value of plugin setting %s => %s", key, value), e);
+            return defaultValue;
+        }
+    }
+
+    private void putInt(String key, int value) {
+        PluginSettings pluginSettings = pluginSettingsFactory.createSettingsForKey(PLUGIN_KEY);
+        pluginSettings.put(key, String.valueOf(value));
+    }
+}
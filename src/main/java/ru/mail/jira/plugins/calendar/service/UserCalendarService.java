@@ -5,6 +5,9 @@ import com.atlassian.jira.exception.GetException;
 import ru.mail.jira.plugins.calendar.model.Calendar;
 import ru.mail.jira.plugins.calendar.model.UserCalendar;
 
+import java.util.Collection;
+import java.util.Map;
+
 @Transactional
 public interface UserCalendarService {
     UserCalendar[] find(String userKey);
@@ -22,4 +25,14 @@ public interface UserCalendarService {
     void removeCalendar(String userKey, Integer calendarId);
 
     int getUsersCount(final int calendarId);
+
+    /**
+     * Drops the cached users count of the calendar, has to be called once users of the calendar are committed
+     */
+    void invalidateUsersCount(int calendarId);
+
+    /**
+     * @return users count by calendar id
+     */
+    Map<Integer, Integer> getUsersCount(Collection<Integer> calendarIds);
 }
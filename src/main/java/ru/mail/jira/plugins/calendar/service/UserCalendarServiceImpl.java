@@ -1,19 +1,60 @@
 package ru.mail.jira.plugins.calendar.service;
 
 import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheLoader;
+import com.atlassian.cache.CacheManager;
+import com.atlassian.cache.CacheSettingsBuilder;
 import com.atlassian.jira.exception.GetException;
 import net.java.ao.ActiveObjectsException;
+import net.java.ao.DatabaseProvider;
+import net.java.ao.EntityManager;
 import net.java.ao.Query;
+import org.apache.commons.lang3.StringUtils;
 import ru.mail.jira.plugins.calendar.model.Calendar;
 import ru.mail.jira.plugins.calendar.model.UserCalendar;
 
+import javax.annotation.Nonnull;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 public class UserCalendarServiceImpl implements UserCalendarService {
+    private final static String USERS_COUNT_CACHE_NAME = UserCalendarServiceImpl.class.getName() + ".usersCount";
+    // Databases limit the number of parameters of one statement
+    private final static int MAX_IN_PARAMETERS = 500;
+    private final static int USERS_COUNT_EXPIRE_AFTER_WRITE_HOURS = 1;
+
     private ActiveObjects ao;
+    private Cache<Integer, Integer> usersCountCache;
 
     public void setAo(ActiveObjects ao) {
         this.ao = ao;
     }
 
+    /**
+     * Users count of a calendar is kept in a cluster-wide cache and dropped whenever a user adds or removes the calendar
+     */
+    public void setCacheManager(CacheManager cacheManager) {
+        this.usersCountCache = cacheManager.getCache(USERS_COUNT_CACHE_NAME, new CacheLoader<Integer, Integer>() {
+            @Nonnull
+            @Override
+            public Integer load(@Nonnull Integer calendarId) {
+                return ao.count(UserCalendar.class, Query.select().where("CALENDAR_ID = ?", calendarId));
+            }
+        }, new CacheSettingsBuilder().remote()
+                                     .replicateViaInvalidation()
+                                     .expireAfterWrite(USERS_COUNT_EXPIRE_AFTER_WRITE_HOURS, TimeUnit.HOURS)
+                                     .build());
+    }
+
     @Override
     public UserCalendar[] find(String userKey) {
         return ao.find(UserCalendar.class, Query.select().where("USER_KEY = ?", userKey));
@@ -76,6 +117,81 @@ public class UserCalendarServiceImpl implements UserCalendarService {
     }
 
     public int getUsersCount(final int calendarId) {
-        return ao.find(UserCalendar.class, Query.select().where("CALENDAR_ID = ? ", calendarId)).length;
+        return usersCountCache.get(calendarId);
+    }
+
+    @Override
+    public void invalidateUsersCount(int calendarId) {
+        usersCountCache.remove(calendarId);
+    }
+
+    @Override
+    public Map<Integer, Integer> getUsersCount(Collection<Integer> calendarIds) {
+        Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+        List<Integer> notCachedCalendarIds = new ArrayList<Integer>();
+        for (Integer calendarId : calendarIds)
+            if (usersCountCache.containsKey(calendarId))
+                result.put(calendarId, usersCountCache.get(calendarId));
+            else
+                notCachedCalendarIds.add(calendarId);
+        if (notCachedCalendarIds.isEmpty())
+            return result;
+
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (Integer calendarId : notCachedCalendarIds)
+            counts.put(calendarId, 0);
+        // Nobody has added any calendar yet
+        UserCalendar[] anyUserCalendar = ao.find(UserCalendar.class, Query.select().limit(1));
+        if (anyUserCalendar.length > 0)
+            for (int from = 0; from < notCachedCalendarIds.size(); from += MAX_IN_PARAMETERS)
+                countUsers(anyUserCalendar[0].getEntityManager(), notCachedCalendarIds.subList(from, Math.min(from + MAX_IN_PARAMETERS, notCachedCalendarIds.size())), counts);
+        for (Map.Entry<Integer, Integer> entry : counts.entrySet())
+            usersCountCache.put(entry.getKey(), entry.getValue());
+        result.putAll(counts);
+        return result;
+    }
+
+    /**
+     * Counts users of the calendars in the database with one grouped query. Active Objects can not select aggregates
+     * into entities, so the query is run through the provider of the entity manager with the table name it has mapped.
+     */
+    private void countUsers(EntityManager entityManager, List<Integer> calendarIds, Map<Integer, Integer> counts) {
+        DatabaseProvider provider = entityManager.getProvider();
+        String table = provider.withSchema(entityManager.getNameConverters().getTableNameConverter().getName(UserCalendar.class));
+        String column = provider.processID("CALENDAR_ID");
+        String sql = String.format("SELECT %s, COUNT(*) FROM %s WHERE %s IN (%s) GROUP BY %s",
+                                   column, table, column, StringUtils.repeat("?", ", ", calendarIds.size()), column);
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = provider.getConnection();
+            statement = connection.prepareStatement(sql);
+            for (int i = 0; i < calendarIds.size(); i++)
+                statement.setInt(i + 1, calendarIds.get(i));
+            resultSet = statement.executeQuery();
+            while (resultSet.next())
+                counts.put(resultSet.getInt(1), resultSet.getInt(2));
+        } catch (SQLException e) {
+            throw new ActiveObjectsException(e);
+        } finally {
+            closeQuietly(resultSet, statement, connection);
+        }
+    }
+
+    private static void closeQuietly(ResultSet resultSet, PreparedStatement statement, Connection connection) {
+        try {
+            if (resultSet != null)
+                resultSet.close();
+            if (statement != null)
+                statement.close();
+        } catch (SQLException ignored) {
+        } finally {
+            try {
+                if (connection != null)
+                    connection.close();
+            } catch (SQLException ignored) {
+            }
+        }
     }
 }
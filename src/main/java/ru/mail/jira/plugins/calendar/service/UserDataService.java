@@ -98,7 +98,7 @@ public class UserDataService {
     }
 
     public UserDataDto updateUserData(final ApplicationUser user, final UserDataDto userDataDto) {
-        return ao.executeInTransaction(new TransactionCallback<UserDataDto>() {
+        UserDataDto result = ao.executeInTransaction(new TransactionCallback<UserDataDto>() {
             @Override
             public UserDataDto doInTransaction() {
                 UserData userData = getUserData(user);
@@ -117,6 +117,10 @@ public class UserDataService {
                 return getUserDataDto(user, userData);
             }
         });
+        if (userDataDto.getCalendars() != null)
+            for (Integer calendarId : userDataDto.getCalendars())
+                userCalendarService.invalidateUsersCount(calendarId);
+        return result;
     }
 
     public UserData getUserDataByIcalUid(final String icalUid) {
@@ -179,6 +183,7 @@ public class UserDataService {
 
     public void removeUserCalendar(final ApplicationUser user, final Integer calendarId) {
         userCalendarService.removeCalendar(user.getKey(), calendarId);
+        userCalendarService.invalidateUsersCount(calendarId);
     }
 
     private boolean isAdministrator(ApplicationUser user) {
@@ -110,6 +110,7 @@ define('calendar/calendar-dialog', ['jquery', 'underscore', 'backbone', 'jira/ut
             this.$('#calendar-dialog-event-start').auiSelect2('enable', canAdmin);
             this.$('#calendar-dialog-event-end').attr('disabled', !canAdmin);
             this.$('#calendar-dialog-event-end').auiSelect2('enable', canAdmin);
+            this.$('#calendar-dialog-event-limit').attr('disabled', !canAdmin);
             this.$('.radio').attr('disabled', !canAdmin);
             this.$('.calendar-dialog-source-field').attr('disabled', !canAdmin);
             this.$('.calendar-dialog-source-field').auiSelect2('enable', canAdmin);
@@ -375,6 +376,7 @@ define('calendar/calendar-dialog', ['jquery', 'underscore', 'backbone', 'jira/ut
                 this.$('#calendar-dialog-color').auiSelect2('val', this.model.get('selectedColor'));
                 this.$('#calendar-dialog-event-start').auiSelect2('val', this.model.get('selectedEventStartId'));
                 this.$('#calendar-dialog-event-end').auiSelect2('val', this.model.get('selectedEventEndId'));
+                this.$('#calendar-dialog-event-limit').val(this.model.get('selectedEventLimit') || '');
 
                 this._showSourceField(this.model.get('selectedSourceType'));
                 if (this.sourceType == 'project' || this.sourceType == 'filter')
@@ -457,6 +459,7 @@ define('calendar/calendar-dialog', ['jquery', 'underscore', 'backbone', 'jira/ut
             }
             var eventStart = this.$('#calendar-dialog-event-start').val();
             var eventEnd = this.$('#calendar-dialog-event-end').val();
+            var eventLimit = $.trim(this.$('#calendar-dialog-event-limit').val());
             var displayedFields = this.$('#calendar-dialog-displayed-fields').val();
             var permissions = _.filter(_.values(this.permissionIds), function(obj) {
                 return !!obj;
@@ -469,6 +472,7 @@ define('calendar/calendar-dialog', ['jquery', 'underscore', 'backbone', 'jira/ut
                 selectedSourceValue: source,
                 selectedEventStartId: eventStart,
                 selectedEventEndId: eventEnd,
+                selectedEventLimit: eventLimit ? parseInt(eventLimit, 10) || 0 : null,
                 selectedDisplayedFields: displayedFields ? displayedFields.split(',') : [],
                 permissions: permissions && permissions.length ? permissions : []
             };
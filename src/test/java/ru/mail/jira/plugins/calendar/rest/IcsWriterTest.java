@@ -0,0 +1,81 @@
+package ru.mail.jira.plugins.calendar.rest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IcsWriterTest {
+    private final static String CRLF = "\r\n";
+
+    @Test
+    public void foldsLinesAt75Octets() throws IOException {
+        StringBuilder summary = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            summary.append((char) ('a' + i % 26));
+        String output = writeEvent(summary.toString());
+
+        assertLinesFit(output);
+        assertEquals("SUMMARY:" + summary, findLine(unfold(output), "SUMMARY:"));
+    }
+
+    @Test
+    public void foldsMultibyteCharactersWhole() throws IOException {
+        // Two, three and four octets per character, folding must not split any of them
+        StringBuilder summary = new StringBuilder();
+        for (int i = 0; i < 30; i++)
+            summary.append("\u0436\u20AC").appendCodePoint(0x1F600);
+        String output = writeEvent(summary.toString());
+
+        assertLinesFit(output);
+        assertEquals("SUMMARY:" + summary, findLine(unfold(output), "SUMMARY:"));
+    }
+
+    @Test
+    public void escapesText() throws IOException {
+        String output = writeEvent("a,b;c\\d\ne\r\nf");
+
+        assertEquals("SUMMARY:a\\,b\\;c\\\\d\\ne\\nf", findLine(unfold(output), "SUMMARY:"));
+    }
+
+    @Test
+    public void writesCalendar() throws IOException {
+        String output = writeEvent("Summary");
+
+        assertTrue(output.startsWith("BEGIN:VCALENDAR" + CRLF));
+        assertTrue(output.endsWith("END:VCALENDAR" + CRLF));
+        assertEquals("DTSTAMP:19700101T000000Z", findLine(output, "DTSTAMP:"));
+        assertEquals("DTSTART:19700101T000001Z", findLine(output, "DTSTART:"));
+    }
+
+    private static String writeEvent(String summary) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        IcsWriter icsWriter = new IcsWriter(output, new Date(0));
+        icsWriter.startCalendar("-//Test//EN");
+        icsWriter.writeEvent("1_TEST-1", summary, new Date(1000), null, false, "http://localhost/browse/TEST-1", null);
+        icsWriter.endCalendar();
+        return new String(output.toByteArray(), "UTF-8");
+    }
+
+    private static void assertLinesFit(String output) throws IOException {
+        for (String line : output.split(CRLF))
+            assertTrue(line, line.getBytes("UTF-8").length <= 75);
+    }
+
+    private static String unfold(String output) {
+        return output.replace(CRLF + " ", "");
+    }
+
+    private static String findLine(String output, String prefix) {
+        for (String line : output.split(CRLF))
+            if (line.startsWith(prefix))
+                return line;
+        fail("No line starts with " + prefix);
+        return null;
+    }
+}
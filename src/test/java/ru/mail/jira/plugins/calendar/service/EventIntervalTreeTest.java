@@ -0,0 +1,77 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import org.junit.Test;
+import ru.mail.jira.plugins.calendar.rest.dto.Event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class EventIntervalTreeTest {
+    private final static long DAY = 24 * 60 * 60 * 1000L;
+
+    @Test
+    public void findsEventsTouchingWindowEdges() {
+        EventIntervalTree tree = new EventIntervalTree(Arrays.asList(event(1, 50, 100L),
+                                                                     event(2, 200, 250L),
+                                                                     event(3, 50, 99L),
+                                                                     event(4, 201, 250L)));
+
+        assertEquals(Arrays.asList(1L, 2L), issueIds(tree.find(100, 200)));
+    }
+
+    @Test
+    public void findsEventsWithoutEndAndSpanningWindow() {
+        EventIntervalTree tree = new EventIntervalTree(Arrays.asList(event(1, 150, null),
+                                                                     event(2, 50, 300L),
+                                                                     event(3, 99, null),
+                                                                     event(4, 201, null)));
+
+        assertEquals(Arrays.asList(2L, 1L), issueIds(tree.find(100, 200)));
+    }
+
+    @Test
+    public void findsAllDayEventsOnTheirDaysOnly() {
+        // Ends of date-only fields are exclusive, the event lasts from the start of day 10 till the end of day 11
+        Event event = new Event();
+        event.setIssueId(1);
+        event.setStartTime(10 * DAY, true);
+        event.setEndTime(12 * DAY, true);
+        EventIntervalTree tree = new EventIntervalTree(Collections.singletonList(event));
+
+        assertEquals(Collections.singletonList(1L), issueIds(tree.find(9 * DAY, 10 * DAY)));
+        assertEquals(Collections.singletonList(1L), issueIds(tree.find(12 * DAY - 1, 13 * DAY)));
+        assertEquals(Collections.<Long>emptyList(), issueIds(tree.find(12 * DAY, 13 * DAY)));
+        assertEquals(Collections.<Long>emptyList(), issueIds(tree.find(8 * DAY, 10 * DAY - 1)));
+    }
+
+    @Test
+    public void findsEventsOrderedByStart() {
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 100; i > 0; i--)
+            events.add(event(i, i * 10, i * 10 + 25L));
+        EventIntervalTree tree = new EventIntervalTree(events);
+
+        assertEquals(100, tree.size());
+        assertEquals(Arrays.asList(48L, 49L, 50L, 51L, 52L, 53L, 54L, 55L, 56L, 57L, 58L, 59L, 60L), issueIds(tree.find(500, 600)));
+        assertEquals(Collections.<Long>emptyList(), issueIds(tree.find(2000, 3000)));
+    }
+
+    private static Event event(long issueId, long start, Long end) {
+        Event event = new Event();
+        event.setIssueId(issueId);
+        event.setStartTime(start, false);
+        event.setEndTime(end, false);
+        return event;
+    }
+
+    private static List<Long> issueIds(List<Event> events) {
+        List<Long> result = new ArrayList<Long>(events.size());
+        for (Event event : events)
+            result.add(event.getIssueId());
+        return result;
+    }
+}
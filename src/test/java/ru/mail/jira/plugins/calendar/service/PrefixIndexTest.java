@@ -0,0 +1,69 @@
+package ru.mail.jira.plugins.calendar.service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PrefixIndexTest {
+    private final static List<String> NAMES = Arrays.asList("John Smith", "Mary Ann Jones", "Peter Pan");
+    private final static PermissionSubjectIndex.PrefixIndex<String> INDEX = new PermissionSubjectIndex.PrefixIndex<String>(
+            NAMES,
+            Arrays.asList(new String[]{"John Smith", "jsmith", "john.smith@example.com"},
+                          new String[]{"Mary Ann Jones", "mjones", null},
+                          new String[]{"Peter Pan", "ppan", "pan@example.com"}));
+
+    @Test
+    public void matchesEveryWord() {
+        assertEquals(Collections.singletonList("John Smith"), find("smi"));
+        assertEquals(Collections.singletonList("Mary Ann Jones"), find("ann"));
+        assertEquals(Collections.singletonList("Mary Ann Jones"), find("jones"));
+        assertEquals(Arrays.asList("John Smith", "Peter Pan"), find("example"));
+    }
+
+    @Test
+    public void matchesSeveralWords() {
+        assertEquals(Collections.singletonList("Mary Ann Jones"), find("mary ann"));
+        assertEquals(Collections.singletonList("Mary Ann Jones"), find("ann jo"));
+        assertEquals(Collections.<String>emptyList(), find("ann smith"));
+    }
+
+    @Test
+    public void ignoresCase() {
+        assertEquals(Collections.singletonList("John Smith"), find("jOhN"));
+        assertEquals(Collections.singletonList("John Smith"), find("  SMITH "));
+        assertEquals(Collections.singletonList("Peter Pan"), find("PPAN"));
+    }
+
+    @Test
+    public void doesNotMatchInsideWords() {
+        assertEquals(Collections.<String>emptyList(), find("ohn"));
+        assertEquals(Collections.<String>emptyList(), find("mith"));
+    }
+
+    @Test
+    public void limitsFoundEntries() {
+        PermissionSubjectIndex.Matches<String> matches = INDEX.find("j", null, 1);
+
+        assertEquals(Collections.singletonList("John Smith"), matches.getItems());
+        assertEquals(2, matches.getTotal());
+    }
+
+    @Test
+    public void findsAmongGivenEntries() {
+        BitSet among = new BitSet();
+        among.set(1);
+        among.set(2);
+
+        assertEquals(Collections.singletonList("Mary Ann Jones"), INDEX.find("j", among, 10).getItems());
+        assertEquals(Arrays.asList("Mary Ann Jones", "Peter Pan"), INDEX.find("", among, 10).getItems());
+    }
+
+    private static List<String> find(String filter) {
+        return INDEX.find(filter, null, 10).getItems();
+    }
+}